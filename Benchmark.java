@@ -0,0 +1,469 @@
+/*
+ * Measures how fast each of the DCPU16's execution engines runs a program.
+ * Usage: java Benchmark [program_file]
+ *    OR: java Benchmark -fleet [size]
+ *    OR: java Benchmark -context
+ *    OR: java Benchmark -modes
+ *    OR: java Benchmark -paged
+ *    OR: java Benchmark -random [programs]
+ *    OR: java Benchmark -history
+ * The program_file may be .asm or compiled, and has to end by crashing (a 0x0000 word will do).
+ * Without one, this runs each of a few lib routines in a loop.
+ * With -fleet, it runs the lib routines on many DCPU16s at once, each starting from a different input,
+ * one at a time and then in a Fleet.
+ * -context times switching a DCPU16 between two saved contexts, after checking that random contexts
+ * come back the same through a long[] and a ByteBuffer.
+ * -modes runs the lib routines on each engine in fast and in cycle-exact mode, with a timer event
+ * looking at the registers every so often, and checks that every run ends the same and that in
+ * cycle-exact mode the timer sees the same as it does with step().
+ * -paged runs the lib routines as usual, but on a paged Memory instead of a FlatMemory.
+ * -random doesn't time anything: it runs random programs with step() on a paged Memory, on each
+ * engine in cycle-exact mode on a FlatMemory and in a Fleet, and says if any of them end differently.
+ * -history runs the lib routines, and a program that writes all over memory, on each engine with and
+ * without recording a History at the default interval. Since runs here can differ by more than the
+ * 20% recording may cost, the cost it checks is the time spent taking checkpoints, out of the run.
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import dcpu16.*;
+
+public class Benchmark{
+
+	// name, code to call the routine with I counting up, the file it's in
+	private static final String[][] ROUTINES = {
+		{"sqrt32", "SET A, I\n SET B, 0x1234\n JSR sqrt32", "lib/sqrt32.asm"},
+		{"sqrt16", "SET A, I\n ADD A, 1\n JSR sqrt16", "lib/sqrt16.asm"}, // sqrt32 never finishes with 0
+		{"sin/cos", "SET A, I\n JSR sin\n SET A, I\n JSR cos", "lib/trig.asm"},
+		{"point2angle", "SET A, I\n AND A, 0x3F\n ADD A, 1\n SET B, I\n SHR B, 8\n ADD B, 1\n JSR point2angle", "lib/points2angle.asm"},
+		{"factorial", "SET A, I\n AND A, 0x7\n ADD A, 1\n JSR factorial", "lib/factorial.asm"},
+	};
+
+	private static final String[] ENGINES = {"step", "table", "recompiler", "intrinsics"}; // the last is the table with lib routines run in Java
+	private static final int ROUNDS = 5;
+	private static final long LANE_CYCLES = 200000;
+	private static final int SWITCHES = 10000000;
+	private static final long TIMER = 997; // cycles between the -modes timer's looks
+	private static final long RANDOM_CYCLES = 20000; // how long -random runs each program
+	private static final int RANDOM_FLEET = 100; // and how many go in a Fleet together
+	private static final long HISTORY_CYCLES = 20000000; // how long -history runs each program
+	private static final int HISTORY_LIMIT = 20; // how many percent slower recording may be
+
+	// rewrites every word from 0x1000 up with the number of the pass, so every checkpoint has to save them all
+	private static final String SCRIBBLE =
+		"	SET J, 0\n"
+		+ ":pass\n"
+		+ "	ADD J, 1\n"
+		+ "	SET I, 0x1000\n"
+		+ ":loop\n"
+		+ "	SET [I], J\n"
+		+ "	ADD I, 1\n"
+		+ "	IFN I, 0\n"
+		+ "		SET PC, loop\n"
+		+ "	SET PC, pass\n";
+
+	private static boolean paged = false;
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		if (args.length > 0 && args[0].equals("-fleet")){
+			int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+			for (String[] routine : ROUTINES){
+				int[] program = assemble(
+					"	SET I, [0x8000]\n" // the lane's input
+					+ ":loop\n"
+					+ routine[1] + "\n"
+					+ "	ADD I, 1\n"
+					+ "	SET PC, loop\n"
+					+ ".include \"" + routine[2] + "\"\n");
+				measureFleet(routine[0], size, program);
+			}
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-random")){
+			checkRandom(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-context")){
+			measureContext();
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-history")){
+			for (String[] routine : ROUTINES)
+				measureHistory(routine[0], assemble(
+					"	SET I, 0\n"
+					+ ":loop\n"
+					+ routine[1] + "\n"
+					+ "	ADD I, 1\n"
+					+ "	SET PC, loop\n"
+					+ ".include \"" + routine[2] + "\"\n"));
+			measureHistory("scribble", assemble(SCRIBBLE));
+			return;
+		}
+		boolean modes = args.length > 0 && args[0].equals("-modes");
+		paged = args.length > 0 && args[0].equals("-paged");
+		if (args.length > 0 && ! modes && ! paged){
+			measure(args[0], load(args[0]));
+			return;
+		}
+		for (String[] routine : ROUTINES){
+			int[] program = assemble(
+				"	SET I, 0\n"
+				+ ":loop\n"
+				+ routine[1] + "\n"
+				+ "	ADD I, 1\n"
+				+ "	IFN I, 0x4000\n"
+				+ "		SET PC, loop\n"
+				+ "	.dw 0x0000\n"
+				+ ".include \"" + routine[2] + "\"\n");
+			if (modes)
+				measureModes(routine[0], program);
+			else
+				measure(routine[0], program);
+		}
+	}
+
+	private static void measure(String name, int[] program){
+		System.out.println(name);
+		for (String engine : ENGINES){
+			long best = Long.MAX_VALUE;
+			long cycles = 0;
+			for (int round = 0; round < ROUNDS; round++){
+				DCPU16 d = paged ? new DCPU16(new Memory(0x10000)) : new DCPU16();
+				d.memory().write(0, program);
+				d.setTableDispatch(engine.equals("table") || engine.equals("intrinsics"));
+				d.setRecompiling(engine.equals("recompiler"));
+				if (engine.equals("intrinsics"))
+					d.intrinsics().scan();
+				long start = System.nanoTime();
+				d.run(); // until it faults
+				best = Math.min(best, System.nanoTime() - start);
+				cycles = d.cycles();
+			}
+			System.out.println("  " + pad(engine) + cycles + " cycles, best of " + ROUNDS + ": " + (best / 1000000) + " ms, " + (cycles * 1000 / best) + " Mcycles/s");
+		}
+	}
+
+	/*
+	 * Looks at the context every TIMER cycles and keeps a hash of what it saw.
+	 */
+	private static class Timer
+		implements Scheduler.Event
+	{
+
+		long seen = 0;
+		long[] context = new long[DCPU16.CONTEXT_LONGS];
+
+		public void fire(DCPU16 d){
+			d.saveContext(context, 0);
+			for (long c : context)
+				seen = seen * 31 + c;
+			d.scheduler().schedule(d.cycles() + TIMER, this);
+		}
+
+	}
+
+	private static void measureModes(String name, int[] program){
+		System.out.println(name);
+		String ending = null;
+		long stepSeen = 0;
+		for (String engine : ENGINES)
+			for (boolean exact : new boolean[]{false, true}){
+				long best = Long.MAX_VALUE;
+				long cycles = 0;
+				for (int round = 0; round < ROUNDS; round++){
+					DCPU16 d = new DCPU16();
+					d.memory().write(0, program);
+					d.setTableDispatch(engine.equals("table") || engine.equals("intrinsics"));
+					d.setRecompiling(engine.equals("recompiler"));
+					if (engine.equals("intrinsics"))
+						d.intrinsics().scan();
+					d.setCycleExact(exact);
+					Timer timer = new Timer();
+					d.scheduler().schedule(TIMER, timer);
+					long start = System.nanoTime();
+					d.run(); // until it faults
+					best = Math.min(best, System.nanoTime() - start);
+					cycles = d.cycles();
+					String end = ending(d);
+					if (ending == null){
+						ending = end;
+						stepSeen = timer.seen;
+					}
+					if (round == 0 && ! end.equals(ending))
+						System.out.println("  " + engine + (exact ? " (exact)" : "") + " ended differently from step!");
+					if (round == 0 && exact && timer.seen != stepSeen)
+						System.out.println("  " + engine + " (exact) timer saw something else than with step!");
+				}
+				System.out.println("  " + pad(engine) + (exact ? "exact  " : "fast   ") + cycles + " cycles, best of " + ROUNDS + ": " + (best / 1000000) + " ms, " + (cycles * 1000 / best) + " Mcycles/s");
+			}
+	}
+
+	private static void measureHistory(String name, int[] program){
+		System.out.println(name);
+		for (String engine : ENGINES){
+			long[] best = {Long.MAX_VALUE, Long.MAX_VALUE}; // without recording, and with
+			long spent = 0; // in checkpoints, on the best run with recording
+			int checkpoints = 0;
+			for (int round = 0; round < ROUNDS; round++)
+				for (int k = 0; k < 2; k++){
+					int recording = (round + k) % 2; // taking turns going first
+					DCPU16 d = new DCPU16();
+					d.memory().write(0, program);
+					d.setTableDispatch(engine.equals("table") || engine.equals("intrinsics"));
+					d.setRecompiling(engine.equals("recompiler"));
+					if (engine.equals("intrinsics"))
+						d.intrinsics().scan();
+					long start = System.nanoTime();
+					d.setRecording(recording == 1);
+					d.runFor(HISTORY_CYCLES);
+					long time = System.nanoTime() - start;
+					if (recording == 1 && time < best[1]){
+						spent = d.history().spent();
+						checkpoints = d.history().size();
+					}
+					best[recording] = Math.min(best[recording], time);
+				}
+			long slower = spent * 100 / (best[1] - spent);
+			System.out.println("  " + pad(engine) + HISTORY_CYCLES + " cycles, best of " + ROUNDS + ": " + (best[0] / 1000000) + " ms, " + (best[1] / 1000000) + " ms recording, "
+				+ checkpoints + " checkpoints took " + (spent / 1000) + " us, " + slower + "% slower" + (slower > HISTORY_LIMIT ? ", over the limit!" : ""));
+		}
+	}
+
+	/*
+	 * Everything a program can see, and the cycle count.
+	 */
+	private static String ending(DCPU16 d){
+		long[] context = new long[DCPU16.CONTEXT_LONGS];
+		d.saveContext(context, 0);
+		int[] words = new int[d.memory().size()];
+		d.memory().read(0, words, 0, words.length);
+		return java.util.Arrays.toString(context) + java.util.Arrays.hashCode(words);
+	}
+
+	private static void checkRandom(int programs){
+		java.util.Random random = new java.util.Random(1);
+		int[] different = new int[ENGINES.length + 1]; // the last for the Fleet
+		Fleet fleet = null;
+		String[] expectations = new String[RANDOM_FLEET];
+		for (int p = 0; p < programs; p++){
+			int[] program = randomProgram(random);
+			int[] registers = new int[Registers.O + 1]; // PC stays 0
+			for (int r = 0; r < registers.length; r++)
+				if (r != Registers.PC)
+					registers[r] = random.nextBoolean() ? random.nextInt(0x200) : random.nextInt(0x10000); // often near the program
+			DCPU16 reference = new DCPU16(new Memory(0x10000));
+			reference.memory().write(0, program);
+			for (int r = 0; r < registers.length; r++)
+				reference.registers().write(r, registers[r]);
+			String expected = runRandom(reference);
+			for (int e = 0; e < ENGINES.length; e++){
+				String engine = ENGINES[e];
+				DCPU16 d = new DCPU16();
+				d.memory().write(0, program);
+				for (int r = 0; r < registers.length; r++)
+					d.registers().write(r, registers[r]);
+				d.setTableDispatch(engine.equals("table") || engine.equals("intrinsics"));
+				d.setRecompiling(engine.equals("recompiler"));
+				if (engine.equals("intrinsics"))
+					d.intrinsics().scan();
+				d.setCycleExact(true);
+				if (! expected.equals(runRandom(d)) && different[e]++ == 0)
+					System.out.println("  " + engine + " ended differently from step on program " + p);
+			}
+			int lane = p % RANDOM_FLEET;
+			if (lane == 0)
+				fleet = new Fleet(Math.min(RANDOM_FLEET, programs - p));
+			fleet.memory(lane).write(0, program);
+			for (int r = 0; r < registers.length; r++)
+				fleet.writeRegister(lane, r, registers[r]);
+			expectations[lane] = expected;
+			if (lane == fleet.size() - 1){
+				fleet.runFor(RANDOM_CYCLES);
+				for (int n = 0; n < fleet.size(); n++){
+					String fault = " " + fleet.fault(n); // before view(n) hides it
+					if (! expectations[n].equals(ending(fleet.view(n)) + fault) && different[ENGINES.length]++ == 0)
+						System.out.println("  fleet ended differently from step on program " + (p - lane + n));
+				}
+			}
+		}
+		for (int e = 0; e <= ENGINES.length; e++)
+			System.out.println(pad(e < ENGINES.length ? ENGINES[e] : "fleet") + different[e] + " of " + programs + " random programs ended differently from step");
+	}
+
+	/*
+	 * How a random program ended.
+	 */
+	private static String runRandom(DCPU16 d){
+		d.runFor(RANDOM_CYCLES);
+		return ending(d) + " " + d.fault();
+	}
+
+	/*
+	 * Mostly basic instructions with any operands, some JSRs, and some words
+	 * that could be anything, such as a reserved instruction.
+	 */
+	private static int[] randomProgram(java.util.Random random){
+		int[] program = new int[64 + random.nextInt(200)];
+		for (int i = 0; i < program.length; i++){
+			int kind = random.nextInt(20);
+			if (kind == 0)
+				program[i] = random.nextInt(0x10000);
+			else if (kind >= 16)
+				program[i] = 0x01 << 4 | random.nextInt(0x40) << 10;
+			else
+				program[i] = kind | random.nextInt(0x40) << 4 | random.nextInt(0x40) << 10;
+		}
+		return program;
+	}
+
+	private static void measureFleet(String name, int size, int[] program){
+		System.out.println(name + ", " + size + " DCPU16s");
+		long best = Long.MAX_VALUE;
+		long cycles = 0;
+		for (int round = 0; round < ROUNDS; round++){
+			DCPU16[] ds = new DCPU16[size];
+			for (int i = 0; i < size; i++){
+				ds[i] = new DCPU16();
+				ds[i].memory().write(0, program);
+				ds[i].memory().write(0x8000, i);
+			}
+			long start = System.nanoTime();
+			cycles = 0;
+			for (DCPU16 d : ds)
+				cycles += d.runFor(LANE_CYCLES);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println("  " + pad("separate") + cycles + " cycles, best of " + ROUNDS + ": " + (best / 1000000) + " ms, " + (cycles * 1000 / best) + " Mcycles/s");
+		best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++){
+			Fleet fleet = new Fleet(size);
+			fleet.load(0, program);
+			for (int i = 0; i < size; i++)
+				fleet.memory(i).write(0x8000, i);
+			long start = System.nanoTime();
+			cycles = fleet.runFor(LANE_CYCLES);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.println("  " + pad("fleet") + cycles + " cycles, best of " + ROUNDS + ": " + (best / 1000000) + " ms, " + (cycles * 1000 / best) + " Mcycles/s");
+	}
+
+	/*
+	 * A switch saves the DCPU16's context over one of two and restores the
+	 * other.
+	 */
+	private static void measureContext(){
+		checkContexts(100000);
+		DCPU16 d = new DCPU16();
+		d.registers().write(Registers.A, 0x1234);
+		d.registers().write(Registers.PC, 0x10);
+		long[] contexts = new long[DCPU16.CONTEXT_LONGS * 2];
+		d.saveContext(contexts, 0);
+		d.saveContext(contexts, DCPU16.CONTEXT_LONGS);
+		ByteBuffer[] buffers = {ByteBuffer.allocate(DCPU16.CONTEXT_LONGS * 16), ByteBuffer.allocateDirect(DCPU16.CONTEXT_LONGS * 16)};
+		for (ByteBuffer buffer : buffers){
+			d.saveContext(buffer);
+			d.saveContext(buffer);
+		}
+		String[] kinds = {"long[]", "ByteBuffer", "direct"};
+		int half = DCPU16.CONTEXT_LONGS * 8;
+		for (int kind = 0; kind < kinds.length; kind++){
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++){
+				long start = System.nanoTime();
+				if (kind == 0)
+					for (int i = 0; i < SWITCHES; i++){
+						d.saveContext(contexts, (i & 1) * DCPU16.CONTEXT_LONGS);
+						d.restoreContext(contexts, (~i & 1) * DCPU16.CONTEXT_LONGS);
+					}
+				else{
+					ByteBuffer buffer = buffers[kind - 1];
+					for (int i = 0; i < SWITCHES; i++){
+						buffer.position((i & 1) * half);
+						d.saveContext(buffer);
+						buffer.position((~i & 1) * half);
+						d.restoreContext(buffer);
+					}
+				}
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println(pad(kinds[kind]) + "  " + SWITCHES + " switches, best of " + ROUNDS + ": " + (best / 1000000) + " ms, " + (best * 1000 / SWITCHES / 1000.0) + " ns a switch");
+		}
+		if (d.registers().read(Registers.A) != 0x1234 || d.registers().read(Registers.PC) != 0x10)
+			System.out.println("context didn't survive!");
+	}
+
+	/*
+	 * Restores random contexts from a long[], passes them through a ByteBuffer
+	 * to another DCPU16 and back to a long[], and checks nothing changed.
+	 */
+	private static void checkContexts(int count){
+		java.util.Random random = new java.util.Random(1);
+		DCPU16 a = new DCPU16(), b = new DCPU16();
+		long[] context = new long[DCPU16.CONTEXT_LONGS];
+		long[] back = new long[DCPU16.CONTEXT_LONGS];
+		ByteBuffer buffer = ByteBuffer.allocate(DCPU16.CONTEXT_LONGS * 8);
+		int bad = 0;
+		for (int i = 0; i < count; i++){
+			for (int k = 0; k < 3; k++)
+				context[k] = random.nextLong();
+			context[2] &= 0x1FFFFFFFFFFFFL; // PC, SP, O and the skip bit
+			context[3] = random.nextLong() >>> 1;
+			a.restoreContext(context, 0);
+			buffer.clear();
+			a.saveContext(buffer);
+			buffer.flip();
+			b.restoreContext(buffer);
+			b.saveContext(back, 0);
+			if (! java.util.Arrays.equals(context, back) || ! a.registers().dump().equals(b.registers().dump()))
+				bad++;
+		}
+		System.out.println(count + " random contexts round tripped, " + bad + " came back different");
+	}
+
+	private static String pad(String s){
+		while (s.length() < 12)
+			s += " ";
+		return s;
+	}
+
+	private static int[] assemble(String program)
+		throws Exception
+	{
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream())); // the assembler is chatty
+		try{
+			return new assembler.Assembler(program, true).assemble();
+		}
+		finally{
+			System.setOut(out);
+		}
+	}
+
+	private static int[] load(String filename)
+		throws Exception
+	{
+		if (filename.matches(".*\\.asm")){
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(new ByteArrayOutputStream()));
+			try{
+				return new assembler.Assembler(filename).assemble();
+			}
+			finally{
+				System.setOut(out);
+			}
+		}
+		File file = new File(filename);
+		FileInputStream reader = new FileInputStream(file);
+		byte[] octets = new byte[(int)file.length()];
+		reader.read(octets);
+		reader.close();
+		int[] sextets = new int[octets.length / 2];
+		for (int i = 0; i < sextets.length; i++)
+			sextets[i] = ((octets[i * 2] & 0xFF) << 8) | (octets[i * 2 + 1] & 0xFF);
+		return sextets;
+	}
+
+}
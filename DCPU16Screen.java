@@ -2,6 +2,7 @@
  * This file runs a program with screen and keyboard support.
  * Usage: java DCPU16Screen program_file
  * If the program_file ends in .asm, this will attempt to compile the file first.
+ * If it ends in .jar, it should be a precompiled image made by Precompile.
  * Otherwise, it will assume that the file already contains compiled code.
  */
 
@@ -30,8 +31,10 @@ public class DCPU16Screen
 		}
 		final DCPU16 d = new DCPU16();
 		d.setSpeed(100000);
-		loadFromFile(args[0], d.memory());
-		new Thread(new DCPUConsole(d.memory())).start();
+		d.setIdleDetection(true);
+		loadFromFile(args[0], d);
+		DCPUConsole console = new DCPUConsole(d.memory());
+		console.attach(d);
 		final boolean[] stop = new boolean[1];
 		new Thread(new Runnable(){
 			public void run(){
@@ -53,10 +56,21 @@ public class DCPU16Screen
 			e.printStackTrace();
 		}
 		stop[0] = true;
+		console.refresh(); // the last few thousand cycles of output haven't been shown
 		System.out.println(d.dump()); // take one last dump
 	}
 
-	private static void loadFromFile(String filename, Memory memory){
+	private static void loadFromFile(String filename, DCPU16 d){
+		Memory memory = d.memory();
+		if (filename.matches(".*\\.jar")){
+			try{
+				Precompiled.load(filename).install(d);
+			}
+			catch (IOException e){
+				e.printStackTrace();
+			}
+			return;
+		}
 		if (filename.matches(".*\\.asm")){
 			System.out.println("doing asm....");
 			assembler.Assembler a = new assembler.Assembler(filename);
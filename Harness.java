@@ -4,6 +4,7 @@
  */
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import hexer.*;
@@ -12,8 +13,12 @@ import dcpu16.*;
 public class Harness{
 
 	private ArrayList<DCPU16> dcpu16s = new ArrayList<DCPU16>();
-	private HashMap<DCPU16, Thread> threads = new HashMap<DCPU16, Thread>();
-	private HashMap<DCPU16, Exception> exceptions = new HashMap<DCPU16, Exception>();
+	private ConcurrentHashMap<DCPU16, Exception> exceptions = new ConcurrentHashMap<DCPU16, Exception>();
+	private HashMap<DCPU16, Map<String, Integer>> labels = new HashMap<DCPU16, Map<String, Integer>>(); // from the last .asm loaded
+
+	private static final int TRACE_ENTRIES = 1000;
+	private static final int TRACE_SHOWN = 20;
+	private static final long UNTIL_CYCLES = 1000000000; // how long Run until goes before giving up
 
 	private void say(String s){
 		System.out.println(s);
@@ -34,6 +39,20 @@ public class Harness{
 					return;
 				case '1':
 					DCPU16 d = new DCPU16();
+					d.setIdleDetection(true);
+					dcpu16s.add(d);
+					runDcpuMenu(d);
+					break;
+				case '3':
+					ask("File to keep its memory in");
+					try{
+						d = new DCPU16(new MappedMemory(new File(getChoice()), 0x10000));
+						d.setIdleDetection(true);
+					}
+					catch (IOException e){
+						say("" + e);
+						break;
+					}
 					dcpu16s.add(d);
 					runDcpuMenu(d);
 					break;
@@ -65,6 +84,7 @@ public class Harness{
 		say("0: Exit");
 		say("1: Create new DCPU16");
 		say("2: Work with a DCPU16");
+		say("3: Create new DCPU16 with its memory in a file");
 	}
 
 	private void stopCpus(){
@@ -83,13 +103,7 @@ public class Harness{
 	}
 
 	private void runDcpuMenu(DCPU16 d){
-		boolean watching = false;
 		while (true){
-			if (watching && isRunning(d)){
-				getChoice();
-				d.setDebug(false);
-				watching = false;
-			}
 			showDcpu(d);
 			showDcpuMenu();
 			ask("Choose");
@@ -112,21 +126,35 @@ public class Harness{
 					resetRegisters(d);
 					break;
 				case '6':
-					d.step();
+					try{
+						d.singleStep();
+					}
+					catch (IllegalStateException e){
+						say(e.getMessage());
+					}
 					break;
 				case '7':
-					new Thread(new DCPUConsole(d.memory())).start();
+					new DCPUConsole(d.memory()).watch(d);
 					break;
 				case '8':
-					d.setDebug(true);
-					watching = true;
-					if (isRunning(d))
-						say("Watching debug...");
+					if (d.trace() == null){
+						d.setTracing(TRACE_ENTRIES);
+						say("Tracing. Choose 8 again to see the last " + TRACE_SHOWN + " instructions.");
+					}
 					else
-						say("Will watch debug when the DCPU starts...");
+						say(d.trace().format(TRACE_SHOWN));
 					break;
 				case '9':
-					loadFromFile(d.memory());
+					loadFromFile(d);
+					break;
+				case 'B':
+					breakpoints(d);
+					break;
+				case 'H':
+					history(d);
+					break;
+				case 'J':
+					journal(d);
 					break;
 				case 'A':
 					ask("Set speed (kHz)");
@@ -134,8 +162,15 @@ public class Harness{
 					d.setSpeed(speed * 1000);
 					say("Speed set.");
 					break;
+				case 'P':
+					if (! d.resume() && ! d.pause())
+						say("It isn't running.");
+					break;
 				case 'R':
 					break;
+				case 'U':
+					runUntil(d);
+					break;
 				default:
 					say("That's not a choice");
 			}
@@ -151,25 +186,50 @@ public class Harness{
 		say("5: Reset registers");
 		say("6: Step");
 		say("7: Watch VRAM");
-		say("8: Watch Debug");
+		say("8: Trace");
 		say("9: Load from file");
 		say("A: Set speed");
+		say("B: Breakpoints");
+		say("H: History");
+		say("J: Journal");
+		say("P: Pause / Resume");
 		say("R: Refresh");
+		say("U: Run until");
 	}
 
-	private void loadFromFile(Memory memory){
+	private void loadFromFile(DCPU16 d){
 		try{
 			ask("Filename");
-			File file = new File(getChoice());
-			FileInputStream reader = new FileInputStream(file);
-			byte[] octets = new byte[(int)file.length()];
-			reader.read(octets);
-			int[] sextets = new int[octets.length / 2];
-			for (int i = 0; i < sextets.length; i++)
-				sextets[i] = ((int)(octets[i * 2] & 0xFF) << 8) | (int)(octets[i * 2 + 1] & 0xFF);
+			String filename = getChoice();
+			if (filename.matches(".*\\.jar")){
+				Precompiled.load(filename).install(d);
+				say("Loaded precompiled image at 0000.");
+				return;
+			}
+			int[] sextets;
+			Map<String, Integer> found = null;
+			if (filename.matches(".*\\.asm")){
+				assembler.Assembler assembler = new assembler.Assembler(filename);
+				sextets = assembler.assemble();
+				found = assembler.labels();
+			}
+			else{
+				File file = new File(filename);
+				FileInputStream reader = new FileInputStream(file);
+				byte[] octets = new byte[(int)file.length()];
+				reader.read(octets);
+				sextets = new int[octets.length / 2];
+				for (int i = 0; i < sextets.length; i++)
+					sextets[i] = ((int)(octets[i * 2] & 0xFF) << 8) | (int)(octets[i * 2 + 1] & 0xFF);
+			}
 			ask("Memory location");
 			int location = getInteger();
-			memory.write(location, sextets);
+			d.memory().write(location, sextets);
+			if (found != null){
+				for (Map.Entry<String, Integer> label : found.entrySet())
+					label.setValue(label.getValue() + location);
+				labels.put(d, found);
+			}
 			say("Loaded.");
 		}
 		catch (FileNotFoundException e){
@@ -178,6 +238,162 @@ public class Harness{
 		catch (IOException e){
 			e.printStackTrace();
 		}
+		catch (Exception e){ // from the assembler
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Runs on this thread until a condition typed in (see CompiledCondition)
+	 * is met, using the labels of the last .asm file loaded.
+	 */
+	private void runUntil(DCPU16 d){
+		if (isRunning(d)){
+			say("Stop it first.");
+			return;
+		}
+		ask("Run until (like PC == loop && [0x8000] changed)");
+		CompiledCondition condition;
+		try{
+			condition = CompiledCondition.compile(getChoice(), labels.get(d));
+		}
+		catch (IllegalArgumentException e){
+			say(e.getMessage());
+			return;
+		}
+		long start = d.cycles();
+		if (d.runUntil(condition, UNTIL_CYCLES))
+			say("Met after " + (d.cycles() - start) + " cycles.");
+		else if (d.fault() != null)
+			say("Stopped by a fault: " + d.fault());
+		else if (d.breakpoints().hit() != null)
+			say("Stopped by a breakpoint: " + d.breakpoints().hit());
+		else
+			say("Not met in " + UNTIL_CYCLES + " cycles.");
+	}
+
+	/*
+	 * Sets or clears an execution breakpoint or a read or write watchpoint,
+	 * at a hex address or a label of the last .asm file loaded.
+	 */
+	private void breakpoints(DCPU16 d){
+		Breakpoints b = d.breakpoints();
+		for (Breakpoints.Kind kind : Breakpoints.Kind.values()){
+			StringBuilder set = new StringBuilder();
+			for (int address : b.list(kind))
+				set.append(" " + Hexer.hex(address));
+			say(kind + ":" + (set.length() > 0 ? set : " none"));
+		}
+		ask("E, R or W to set one, C to clear one, X to clear them all");
+		String choice = getChoice().toUpperCase();
+		if (choice.charAt(0) == 'X'){
+			b.clearAll();
+			say("Cleared.");
+			return;
+		}
+		Breakpoints.Kind kind = null;
+		boolean clearing = choice.charAt(0) == 'C';
+		if (clearing){
+			ask("E, R or W");
+			choice = getChoice().toUpperCase();
+		}
+		switch (choice.charAt(0)){
+			case 'E': kind = Breakpoints.Kind.EXEC; break;
+			case 'R': kind = Breakpoints.Kind.READ; break;
+			case 'W': kind = Breakpoints.Kind.WRITE; break;
+			default:
+				say("That's not a choice");
+				return;
+		}
+		ask("Address (hex) or label");
+		String where = getChoice().trim();
+		Map<String, Integer> found = labels.get(d);
+		int address;
+		if (found != null && found.containsKey(where.toUpperCase()))
+			address = found.get(where.toUpperCase());
+		else
+			address = Hexer.unhex(where);
+		if (clearing)
+			b.clear(kind, address);
+		else
+			b.set(kind, address);
+		say((clearing ? "Cleared " : "Set ") + kind + " at " + Hexer.hex(address) + ".");
+	}
+
+	/*
+	 * Starts recording, or goes back through what's been recorded.
+	 */
+	private void history(DCPU16 d){
+		if (d.state() == DCPU16.State.RUNNING || d.state() == DCPU16.State.STEPPING){
+			say("Pause it first.");
+			return;
+		}
+		History h = d.history();
+		if (h == null){
+			d.setRecording(true);
+			say("Recording a checkpoint every " + History.INTERVAL + " cycles.");
+			return;
+		}
+		say("Back as far as " + h.oldest() + " cycles, from " + d.cycles());
+		ask("S to step back, C to continue back to a breakpoint, X to stop recording");
+		switch (getChoice().toUpperCase().charAt(0)){
+			case 'S':
+				if (! h.reverseStep())
+					say("Can't go back any further.");
+				break;
+			case 'C':
+				Breakpoints.Hit hit = h.reverseContinue();
+				say(hit != null ? hit.toString() : "No breakpoints hit, back at " + d.cycles() + " cycles.");
+				break;
+			case 'X':
+				d.setRecording(false);
+				say("Stopped recording.");
+				break;
+			default:
+				say("That's not a choice");
+		}
+	}
+
+	/*
+	 * Records what's typed into the VRAM window to a file, or plays a file
+	 * back instead.
+	 */
+	private void journal(DCPU16 d){
+		try{
+			if (d.journal() != null){
+				ask("Save the journal to");
+				Journal journal = d.journal();
+				d.record(null);
+				journal.save(new File(getChoice()));
+				say("Saved " + journal.size() + " writes.");
+				return;
+			}
+			if (d.isRunning()){
+				say("Stop it first.");
+				return;
+			}
+			ask("R to record, P to play back from a file");
+			switch (getChoice().toUpperCase().charAt(0)){
+				case 'R':
+					d.record(new Journal());
+					say("Recording from " + d.cycles() + " cycles. Choose J again to save.");
+					break;
+				case 'P':
+					ask("Filename");
+					Journal journal = Journal.load(new File(getChoice()));
+					d.replay(journal);
+					say("Playing back " + journal.size() + " writes.");
+					break;
+				default:
+					say("That's not a choice");
+			}
+		}
+		catch (IOException e){
+			say("" + e);
+		}
+		catch (IllegalStateException e){
+			say(e.getMessage());
+		}
 	}
 
 	private void setRegister(DCPU16 d){
@@ -228,8 +444,10 @@ public class Harness{
 	}
 
 	private void showDcpu(DCPU16 d){
-		if (isRunning(d))
-			say("[ RUNNING ]");
+		if (d.state() != DCPU16.State.STOPPED)
+			say("[ " + d.state() + " ]");
+		if (d.breakpoints().hit() != null)
+			say(d.breakpoints().hit().toString());
 		Exception e = exceptions.get(d);
 		if (e != null)
 			e.printStackTrace();
@@ -237,7 +455,7 @@ public class Harness{
 	}
 
 	private boolean isRunning(DCPU16 d){
-		return threads.get(d) != null;
+		return d.isRunning();
 	}
 
 	private void toggleRunDcpu(final DCPU16 d){
@@ -251,11 +469,11 @@ public class Harness{
 					catch (Exception e){
 						exceptions.put(d, e);
 					}
-					threads.remove(d);
 				}
 			});
-			threads.put(d, t);
 			t.start();
+			while (t.isAlive() && ! isRunning(d))
+				Thread.yield(); // so the menu shows it running
 		}
 		else
 			d.stop();
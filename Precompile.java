@@ -0,0 +1,42 @@
+/*
+ * Translates a program ahead of time so that DCPU16Screen and Harness can run it without warming up.
+ * Usage: java Precompile input.asm output.jar
+ *    OR: java Precompile input.x output.jar
+ */
+
+import java.io.*;
+
+import dcpu16.*;
+
+public class Precompile{
+
+	public static void main(String[] args)
+		throws Exception
+	{
+		String infile = args.length > 0 ? args[0] : Assembler.getFilename("Input file");
+		String outfile = args.length > 1 ? args[1] : Assembler.getFilename("Output file");
+		int[] image;
+		if (infile.matches(".*\\.asm"))
+			image = new assembler.Assembler(infile).assemble();
+		else
+			image = read(infile);
+		Precompiled p = Precompiled.translate(image);
+		p.save(outfile);
+		System.out.println("Translated " + p.blockCount() + " blocks from " + image.length + " words");
+	}
+
+	private static int[] read(String filename)
+		throws IOException
+	{
+		File file = new File(filename);
+		FileInputStream reader = new FileInputStream(file);
+		byte[] octets = new byte[(int)file.length()];
+		reader.read(octets);
+		reader.close();
+		int[] sextets = new int[octets.length / 2];
+		for (int i = 0; i < sextets.length; i++)
+			sextets[i] = ((octets[i * 2] & 0xFF) << 8) | (octets[i * 2 + 1] & 0xFF);
+		return sextets;
+	}
+
+}
@@ -191,6 +191,20 @@ public class Assembler{
 		return program;
 	}
 
+	/**
+	 * Where each label ended up, once assemble() has run. Names are upper case,
+	 * and local labels are their global label's name, "::" and their own.
+	 */
+	public Map<String, Integer> labels(){
+		HashMap<String, Integer> labels = new HashMap<String, Integer>();
+		for (String label : labelsToLines.keySet()){
+			Integer position = lineToPosition(labelsToLines.get(label));
+			if (position != null)
+				labels.put(label, position + labelOffsets.get(label));
+		}
+		return labels;
+	}
+
 	public void debug(String debugfile)
 		throws Exception
 	{
@@ -0,0 +1,293 @@
+package dcpu16;
+
+import hexer.*;
+
+/**
+ * Execution breakpoints and read and write watchpoints, one bit per address
+ * in a bitmap of 64K bits for each. A DCPU16 only looks at them while at
+ * least one is set: runFor() and runUntil() then run every instruction
+ * through step(), working out beforehand which words it will read and write.
+ * With none set, nothing is checked and every engine runs as usual.
+ *
+ * An execution breakpoint stops before the instruction at its address, and
+ * is stepped over when running carries on from there. A watchpoint stops
+ * after the instruction that touched its address. Skipped instructions touch
+ * nothing, and fetching an instruction doesn't count as reading it, though
+ * using a next word as a literal does. Either way the DCPU16 keeps the Hit,
+ * and run() pauses on it.
+ *
+ * Bits can be set and cleared from any thread, but a running DCPU16 only
+ * starts or stops looking at them between slices.
+ */
+public class Breakpoints{
+
+	public enum Kind{
+		EXEC, READ, WRITE
+	}
+
+	/**
+	 * Where a DCPU16 stopped, and why.
+	 */
+	public static class Hit{
+
+		public final Kind kind;
+		public final int pc; // the instruction that hit it
+		public final int address;
+		public final long cycle; // cycles() when it stopped
+
+		Hit(Kind kind, int pc, int address, long cycle){
+			this.kind = kind;
+			this.pc = pc;
+			this.address = address;
+			this.cycle = cycle;
+		}
+
+		public String toString(){
+			if (kind == Kind.EXEC)
+				return "Breakpoint at " + Hexer.hex(pc) + " after " + cycle + " cycles";
+			return (kind == Kind.READ ? "Read" : "Write") + " of " + Hexer.hex(address) + " by " + Hexer.hex(pc) + " after " + cycle + " cycles";
+		}
+
+	}
+
+	private final long[][] bits = new long[Kind.values().length][0x10000 / 64];
+	private volatile int armed = 0; // bits set, of every kind
+	private volatile Hit hit;
+	private int passing = -1; // an execution breakpoint that's already been stopped at
+
+	// what the instruction being watched will touch, see watch()
+	private int[] reads = new int[2];
+	private int[] writes = new int[2];
+	private int readCount;
+	private int writeCount;
+	private int sp;
+
+	public synchronized void set(Kind kind, int address){
+		long[] map = bits[kind.ordinal()];
+		address &= 0xFFFF;
+		long bit = 1L << address;
+		if ((map[address >> 6] & bit) == 0){
+			map[address >> 6] |= bit;
+			armed++;
+		}
+	}
+
+	public synchronized void clear(Kind kind, int address){
+		long[] map = bits[kind.ordinal()];
+		address &= 0xFFFF;
+		long bit = 1L << address;
+		if ((map[address >> 6] & bit) != 0){
+			map[address >> 6] &= ~bit;
+			armed--;
+		}
+	}
+
+	public synchronized void clearAll(){
+		for (long[] map : bits)
+			java.util.Arrays.fill(map, 0);
+		armed = 0;
+	}
+
+	public boolean isSet(Kind kind, int address){
+		address &= 0xFFFF;
+		return (bits[kind.ordinal()][address >> 6] & (1L << address)) != 0;
+	}
+
+	/**
+	 * Whether any bit is set, which is when a DCPU16 looks at them.
+	 */
+	public boolean isArmed(){
+		return armed > 0;
+	}
+
+	/**
+	 * The addresses set for kind, lowest first.
+	 */
+	public synchronized int[] list(Kind kind){
+		long[] map = bits[kind.ordinal()];
+		int count = 0;
+		for (long word : map)
+			count += Long.bitCount(word);
+		int[] addresses = new int[count];
+		int n = 0;
+		for (int i = 0; i < map.length; i++)
+			for (long word = map[i]; word != 0; word &= word - 1)
+				addresses[n++] = i * 64 + Long.numberOfTrailingZeros(word);
+		return addresses;
+	}
+
+	/**
+	 * What the DCPU16 last stopped at, or null if it hasn't since it was last
+	 * set going.
+	 */
+	public Hit hit(){
+		return hit;
+	}
+
+	void start(){
+		hit = null;
+	}
+
+	/*
+	 * For a History that went back to hit: keeps it as if the DCPU16 had
+	 * stopped there.
+	 */
+	void stoppedAt(Hit hit){
+		this.hit = hit;
+		passing = hit.kind == Kind.EXEC ? hit.pc : -1;
+	}
+
+	/*
+	 * Doesn't stop at an execution breakpoint at pc if it's the very next
+	 * thing run.
+	 */
+	void passing(int pc){
+		passing = pc;
+	}
+
+	/*
+	 * Whether to stop before the instruction at pc, which isn't being
+	 * skipped. Stopping at the same place twice in a row would never get
+	 * anywhere, so it only stops there again after something else has run.
+	 */
+	boolean stopsAt(int pc, long cycle){
+		boolean again = pc == passing;
+		passing = -1;
+		if (again || (bits[Kind.EXEC.ordinal()][pc >> 6] & (1L << pc)) == 0)
+			return false;
+		hit = new Hit(Kind.EXEC, pc, pc, cycle);
+		passing = pc;
+		return true;
+	}
+
+	/*
+	 * Works out the words the instruction at pc will read and write, in the
+	 * order step() would move SP for POP and PUSH. It has to be called
+	 * before the instruction runs, and touched() after.
+	 */
+	void watch(int[] r, Memory m, int pc){
+		readCount = 0;
+		writeCount = 0;
+		int word = peek(m, pc);
+		int instruction = word & 0xF;
+		int a = (word >> 4) & 0x3F;
+		int b = (word >> 10) & 0x3F;
+		if (instruction == 0){
+			a = b;
+			b = -1;
+		}
+		int next = pc + 1;
+		int aNext = DecodeCache.hasNextWord(a) ? peek(m, next++) : 0;
+		int bNext = b >= 0 && DecodeCache.hasNextWord(b) ? peek(m, next) : 0;
+		int aAt = (pc + 1) & 0xFFFF;
+		int bAt = next & 0xFFFF;
+		sp = r[Registers.SP];
+		int peekSp = sp; // PEEK is worked out before anything moves SP
+		switch (instruction){
+			case 0x0:
+				if (((word >> 4) & 0x3F) != 0x01) // faults without touching anything
+					return;
+				write(sp = (sp - 1) & 0xFFFF);
+				read(address(r, a, aAt, aNext, peekSp));
+				return;
+			case 0x1:
+				read(address(r, b, bAt, bNext, peekSp));
+				write(address(r, a, aAt, aNext, peekSp));
+				return;
+			case 0x5: case 0x6: // DIV and MOD look at b first, and only write a if it's 0
+				int bAddress = address(r, b, bAt, bNext, peekSp);
+				read(bAddress);
+				int aAddress = address(r, a, aAt, aNext, peekSp);
+				if (value(r, m, b, bAddress) != 0)
+					read(aAddress);
+				write(aAddress);
+				return;
+			case 0xC: case 0xD: case 0xE: case 0xF:
+				read(address(r, a, aAt, aNext, peekSp));
+				read(address(r, b, bAt, bNext, peekSp));
+				return;
+			default:
+				aAddress = address(r, a, aAt, aNext, peekSp);
+				read(aAddress);
+				read(address(r, b, bAt, bNext, peekSp));
+				write(aAddress);
+		}
+	}
+
+	/*
+	 * Stops after the instruction watch() looked at if it touched a
+	 * watchpoint, reads first.
+	 */
+	boolean touched(int pc, long cycle){
+		long[] map = bits[Kind.READ.ordinal()];
+		for (int i = 0; i < readCount; i++)
+			if ((map[reads[i] >> 6] & (1L << reads[i])) != 0){
+				hit = new Hit(Kind.READ, pc, reads[i], cycle);
+				return true;
+			}
+		map = bits[Kind.WRITE.ordinal()];
+		for (int i = 0; i < writeCount; i++)
+			if ((map[writes[i] >> 6] & (1L << writes[i])) != 0){
+				hit = new Hit(Kind.WRITE, pc, writes[i], cycle);
+				return true;
+			}
+		return false;
+	}
+
+	/*
+	 * The word an operand refers to, or -1 if it isn't in memory (or is past
+	 * the end, where it faults anyway). Resolves POP and PUSH.
+	 */
+	private int address(int[] r, int operand, int at, int next, int peekSp){
+		int address;
+		if (operand >= 0x08 && operand <= 0x0F)
+			address = r[operand & 0x7];
+		else if (operand >= 0x10 && operand <= 0x17)
+			address = r[operand & 0x7] + next;
+		else if (operand == 0x18){
+			address = sp;
+			sp = (sp + 1) & 0xFFFF;
+		}
+		else if (operand == 0x19)
+			address = peekSp;
+		else if (operand == 0x1A)
+			address = sp = (sp - 1) & 0xFFFF;
+		else if (operand == 0x1E)
+			address = next;
+		else if (operand == 0x1F)
+			address = at;
+		else
+			return -1;
+		return address <= 0xFFFF ? address : -1;
+	}
+
+	private int value(int[] r, Memory m, int operand, int address){
+		if (address >= 0)
+			return peek(m, address);
+		if (operand < 0x08)
+			return r[operand];
+		if (operand == 0x1B)
+			return r[Registers.SP];
+		if (operand == 0x1C)
+			return r[Registers.PC];
+		if (operand == 0x1D)
+			return r[Registers.O];
+		return operand >= 0x20 ? operand - 0x20 : 0;
+	}
+
+	private static int peek(Memory m, int address){
+		address &= 0xFFFF;
+		return address < m.size() ? m.read(address) : 0;
+	}
+
+	private void read(int address){
+		if (address >= 0)
+			reads[readCount++] = address;
+	}
+
+	private void write(int address){
+		if (address >= 0)
+			writes[writeCount++] = address;
+	}
+
+}
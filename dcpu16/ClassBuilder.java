@@ -0,0 +1,292 @@
+package dcpu16;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Just enough of a class file writer for the Recompiler and CompiledCondition:
+ * a constant pool, a no-argument constructor that calls its superclass, and
+ * methods made of raw bytecode. Class files come out as version 49 so that the
+ * JVM's old type checker verifies them and we never have to work out stack map
+ * frames.
+ */
+class ClassBuilder{
+
+	public static final int ICONST_0 = 0x03;
+	public static final int LCONST_0 = 0x09;
+	public static final int BIPUSH = 0x10;
+	public static final int SIPUSH = 0x11;
+	public static final int LDC_W = 0x13;
+	public static final int LDC2_W = 0x14;
+	public static final int ILOAD = 0x15;
+	public static final int LLOAD = 0x16;
+	public static final int ALOAD = 0x19;
+	public static final int IALOAD = 0x2E;
+	public static final int ISTORE = 0x36;
+	public static final int LSTORE = 0x37;
+	public static final int IASTORE = 0x4F;
+	public static final int POP = 0x57;
+	public static final int DUP = 0x59;
+	public static final int IADD = 0x60;
+	public static final int LADD = 0x61;
+	public static final int ISUB = 0x64;
+	public static final int LSUB = 0x65;
+	public static final int IMUL = 0x68;
+	public static final int IDIV = 0x6C;
+	public static final int IREM = 0x70;
+	public static final int ISHL = 0x78;
+	public static final int ISHR = 0x7A;
+	public static final int IAND = 0x7E;
+	public static final int IOR = 0x80;
+	public static final int IXOR = 0x82;
+	public static final int I2L = 0x85;
+	public static final int L2I = 0x88;
+	public static final int LCMP = 0x94;
+	public static final int IFEQ = 0x99;
+	public static final int IFNE = 0x9A;
+	public static final int IFLT = 0x9B;
+	public static final int IFGE = 0x9C;
+	public static final int IFGT = 0x9D;
+	public static final int IFLE = 0x9E;
+	public static final int IF_ICMPEQ = 0x9F;
+	public static final int IF_ICMPNE = 0xA0;
+	public static final int IF_ICMPGT = 0xA3;
+	public static final int IF_ICMPLE = 0xA4;
+	public static final int GOTO = 0xA7;
+	public static final int IRETURN = 0xAC;
+	public static final int RETURN = 0xB1;
+	public static final int GETFIELD = 0xB4;
+	public static final int PUTFIELD = 0xB5;
+	public static final int INVOKEVIRTUAL = 0xB6;
+	public static final int INVOKESPECIAL = 0xB7;
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+	private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	private String name;
+	private String superName;
+	private ArrayList<byte[]> methods = new ArrayList<byte[]>();
+
+	public ClassBuilder(String name, String superName){
+		this.name = name;
+		this.superName = superName;
+		Code init = new Code();
+		init.load(ALOAD, 0);
+		init.op(INVOKESPECIAL);
+		init.u2(methodRef(superName, "<init>", "()V"));
+		init.op(RETURN);
+		addMethod(ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+	}
+
+	private int constant(String key, int tag, byte[] body, int slots){
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+		try{
+			pool.writeByte(tag);
+			pool.write(body);
+		}
+		catch (IOException e){
+			throw new RuntimeException(e);
+		}
+		index = poolCount;
+		poolCount += slots;
+		constants.put(key, index);
+		return index;
+	}
+
+	private static byte[] u2u2(int a, int b){
+		return new byte[]{(byte)(a >> 8), (byte)a, (byte)(b >> 8), (byte)b};
+	}
+
+	public int utf8(String s){
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(s);
+			return constant("U" + s, 1, bytes.toByteArray(), 1);
+		}
+		catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int integer(int i){
+		return constant("I" + i, 3, new byte[]{(byte)(i >> 24), (byte)(i >> 16), (byte)(i >> 8), (byte)i}, 1);
+	}
+
+	public int longConstant(long l){
+		byte[] body = new byte[8];
+		for (int i = 0; i < 8; i++)
+			body[i] = (byte)(l >> (56 - i * 8));
+		return constant("J" + l, 5, body, 2);
+	}
+
+	public int classRef(String className){
+		int n = utf8(className);
+		return constant("C" + className, 7, new byte[]{(byte)(n >> 8), (byte)n}, 1);
+	}
+
+	private int nameAndType(String name, String descriptor){
+		return constant("N" + name + " " + descriptor, 12, u2u2(utf8(name), utf8(descriptor)), 1);
+	}
+
+	public int fieldRef(String owner, String name, String descriptor){
+		return constant("F" + owner + "." + name + " " + descriptor, 9, u2u2(classRef(owner), nameAndType(name, descriptor)), 1);
+	}
+
+	public int methodRef(String owner, String name, String descriptor){
+		return constant("M" + owner + "." + name + " " + descriptor, 10, u2u2(classRef(owner), nameAndType(name, descriptor)), 1);
+	}
+
+	public void addMethod(int access, String name, String descriptor, Code code, int maxStack, int maxLocals){
+		try{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			byte[] body = code.toBytes();
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + body.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(body.length);
+			out.write(body);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+			methods.add(bytes.toByteArray());
+		}
+		catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void addMethod(String name, String descriptor, Code code, int maxStack, int maxLocals){
+		addMethod(ACC_PUBLIC | ACC_FINAL, name, descriptor, code, maxStack, maxLocals);
+	}
+
+	public byte[] toBytes(){
+		try{
+			int thisClass = classRef(name);
+			int superClass = classRef(superName);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			out.write(poolBytes.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] method : methods)
+				out.write(method);
+			out.writeShort(0); // attributes
+			return bytes.toByteArray();
+		}
+		catch (IOException e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static class Label{
+
+		private int position = -1;
+		private ArrayList<Integer> jumps = new ArrayList<Integer>();
+
+		public boolean used(){
+			return ! jumps.isEmpty();
+		}
+
+	}
+
+	/**
+	 * A growing method body. Jumps are always the 16-bit kind, which is plenty
+	 * for anything the Recompiler will put in a single method.
+	 */
+	public class Code{
+
+		private byte[] code = new byte[256];
+		private int length = 0;
+		private ArrayList<Label> labels = new ArrayList<Label>();
+
+		public void op(int op){
+			if (length == code.length)
+				code = Arrays.copyOf(code, code.length * 2);
+			code[length++] = (byte)op;
+		}
+
+		public void u2(int v){
+			op(v >> 8);
+			op(v);
+		}
+
+		public void load(int op, int local){
+			op(op);
+			op(local);
+		}
+
+		public void push(int value){
+			if (value >= -1 && value <= 5)
+				op(ICONST_0 + value);
+			else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE){
+				op(BIPUSH);
+				op(value);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE){
+				op(SIPUSH);
+				u2(value);
+			}
+			else{
+				op(LDC_W);
+				u2(integer(value));
+			}
+		}
+
+		public void pushLong(long value){
+			if (value == 0 || value == 1)
+				op(LCONST_0 + (int)value);
+			else{
+				op(LDC2_W);
+				u2(longConstant(value));
+			}
+		}
+
+		public void jump(int op, Label label){
+			int at = length;
+			op(op);
+			label.jumps.add(at);
+			u2(0);
+			if (! labels.contains(label))
+				labels.add(label);
+		}
+
+		public void mark(Label label){
+			label.position = length;
+			if (! labels.contains(label))
+				labels.add(label);
+		}
+
+		public byte[] toBytes(){
+			for (Label label : labels)
+				for (int at : label.jumps){
+					int offset = label.position - at;
+					code[at + 1] = (byte)(offset >> 8);
+					code[at + 2] = (byte)offset;
+				}
+			return Arrays.copyOf(code, length);
+		}
+
+	}
+
+}
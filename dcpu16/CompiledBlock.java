@@ -0,0 +1,23 @@
+package dcpu16;
+
+/**
+ * A run of DCPU-16 instructions that the Recompiler has turned into a class of
+ * its own. Subclasses are generated, see Recompiler.
+ */
+abstract class CompiledBlock{
+
+	int start;
+	int length; // in words, so the Recompiler knows which writes should throw us away
+	int cycles; // the most it can take, set by Recompiler.install()
+	boolean valid = true;
+	byte[] classFile; // kept so that Precompiled can save it
+	int[] words; // what it was translated from, for Recompiler to share it
+
+	/**
+	 * Runs the block against the given CPU, leaving PC and cycles exactly where
+	 * the interpreter would have. Returns true if it stopped before an
+	 * instruction it can't handle, which the interpreter should now execute.
+	 */
+	abstract boolean run(DCPU16 cpu, int[] r, Memory m);
+
+}
@@ -0,0 +1,454 @@
+package dcpu16;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * A Condition for runUntil() written in a little language and compiled into a
+ * class of its own, so that checking it after every instruction costs no more
+ * than the comparisons in it. For example:
+ *
+ *   PC == main_loop && A > 0x100
+ *   [0x8000] changed || cycles >= 1000000
+ *   !(SP == 0) && [SP + 1] != 0
+ *
+ * Values are numbers (decimal or 0x hex), registers (A to J, PC, SP and O),
+ * labels, cycles, [value] for the word at an address, and sums and
+ * differences of those, which don't wrap. They compare with ==, !=, <, <=, >
+ * and >=. "[value] changed" is true when the word there isn't what it was the
+ * last time the condition was checked. Conditions combine with &&, || and !
+ * and group with parentheses. Names don't care about case, and labels are
+ * looked up in what Assembler.labels() gives.
+ */
+public abstract class CompiledCondition
+	implements DCPU16.Condition
+{
+
+	private static final String CONDITION_CLASS = "dcpu16/CompiledCondition";
+	private static final String MEMORY_CLASS = "dcpu16/Memory";
+	private static final String[] REGISTERS = {"A", "B", "C", "X", "Y", "Z", "I", "J", "PC", "SP", "O"};
+
+	// locals in the generated test()
+	private static final int THIS = 0;
+	private static final int R = 1;
+	private static final int M = 2;
+	private static final int CYCLES = 3; // a long, so it takes 4 too
+	private static final int LOCALS = 5;
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	private String source;
+	private int[] seen; // what each "changed" found last time, or -1 before the first check
+
+	/**
+	 * Compiles source, throwing IllegalArgumentException if it doesn't make
+	 * sense. labels may be null.
+	 */
+	public static CompiledCondition compile(String source, Map<String, Integer> labels){
+		Compiler compiler = new Compiler(source, labels);
+		byte[] classFile = compiler.compile();
+		try{
+			Class<?> c = lookup.defineHiddenClass(classFile, true).lookupClass();
+			CompiledCondition condition = (CompiledCondition)lookup.findConstructor(c, MethodType.methodType(void.class)).invoke();
+			condition.source = source;
+			condition.seen = new int[compiler.changes];
+			java.util.Arrays.fill(condition.seen, -1);
+			return condition;
+		}
+		catch (Throwable e){
+			throw new RuntimeException("Couldn't load condition " + source, e);
+		}
+	}
+
+	public final boolean met(DCPU16 d){
+		return test(d.registers().values(), d.memory(), d.cycles);
+	}
+
+	abstract boolean test(int[] r, Memory m, long cycles);
+
+	/*
+	 * The word at address, or 0 past the end of memory, where reading would
+	 * fault the DCPU16.
+	 */
+	final int peek(Memory m, int address){
+		address &= 0xFFFF;
+		return address < m.size() ? m.read(address) : 0;
+	}
+
+	final boolean changed(Memory m, int slot, int address){
+		int value = peek(m, address);
+		int before = seen[slot];
+		seen[slot] = value;
+		return before >= 0 && before != value;
+	}
+
+	public String toString(){
+		return source;
+	}
+
+	/*
+	 * Parses the source into a tree of Nodes and has them write out test().
+	 */
+	private static class Compiler{
+
+		private ArrayList<String> tokens = new ArrayList<String>();
+		private int next = 0;
+		private String source;
+		private Map<String, Integer> labels;
+		private ClassBuilder c = new ClassBuilder("dcpu16/Checked", CONDITION_CLASS);
+		private ClassBuilder.Code code = c.new Code();
+		int changes = 0;
+
+		Compiler(String source, Map<String, Integer> labels){
+			this.source = source;
+			this.labels = labels;
+			int i = 0;
+			while (i < source.length()){
+				char ch = source.charAt(i);
+				int start = i;
+				if (Character.isWhitespace(ch)){
+					i++;
+					continue;
+				}
+				if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '.')
+					while (i < source.length() && (Character.isLetterOrDigit(source.charAt(i)) || "_.:".indexOf(source.charAt(i)) >= 0))
+						i++;
+				else if (source.startsWith("==", i) || source.startsWith("!=", i) || source.startsWith("<=", i)
+						|| source.startsWith(">=", i) || source.startsWith("&&", i) || source.startsWith("||", i))
+					i += 2;
+				else if ("<>!()[]+-".indexOf(ch) >= 0)
+					i++;
+				else
+					throw new IllegalArgumentException("Don't know what " + ch + " is in " + source);
+				tokens.add(source.substring(start, i));
+			}
+		}
+
+		byte[] compile(){
+			Node root = or();
+			if (next < tokens.size())
+				throw error("Didn't expect " + tokens.get(next));
+			ClassBuilder.Label no = new ClassBuilder.Label();
+			root.branch(this, false, no);
+			code.push(1);
+			code.op(ClassBuilder.IRETURN);
+			code.mark(no);
+			code.push(0);
+			code.op(ClassBuilder.IRETURN);
+			c.addMethod("test", "([IL" + MEMORY_CLASS + ";J)Z", code, 4 + tokens.size() * 4, LOCALS); // no token needs more than 4 more on the stack
+			return c.toBytes();
+		}
+
+		private IllegalArgumentException error(String message){
+			return new IllegalArgumentException(message + " in " + source);
+		}
+
+		private String peek(){
+			return next < tokens.size() ? tokens.get(next) : "";
+		}
+
+		private boolean take(String token){
+			if (! peek().equalsIgnoreCase(token))
+				return false;
+			next++;
+			return true;
+		}
+
+		private void expect(String token){
+			if (! take(token))
+				throw error("Expected " + token + (next < tokens.size() ? " instead of " + peek() : " at the end"));
+		}
+
+		private Node or(){
+			Node left = and();
+			while (take("||"))
+				left = new Logic(false, left, and());
+			return left;
+		}
+
+		private Node and(){
+			Node left = unary();
+			while (take("&&"))
+				left = new Logic(true, left, unary());
+			return left;
+		}
+
+		private Node unary(){
+			if (take("!"))
+				return new Not(unary());
+			if (take("(")){
+				Node inner = or();
+				expect(")");
+				return inner;
+			}
+			Node left = value();
+			if (take("changed")){
+				if (! (left instanceof Peek))
+					throw error("Only [value] can have changed");
+				return new Changed(((Peek)left).address, changes++);
+			}
+			String[] ops = {"==", "!=", "<", "<=", ">", ">="};
+			for (int op = 0; op < ops.length; op++)
+				if (take(ops[op]))
+					return new Compare(op, left, value());
+			throw error("Expected a comparison after " + tokens.get(next - 1));
+		}
+
+		private Node value(){
+			Node left = term();
+			while (true){
+				if (take("+"))
+					left = new Sum(ClassBuilder.LADD, left, term());
+				else if (take("-"))
+					left = new Sum(ClassBuilder.LSUB, left, term());
+				else
+					return left;
+			}
+		}
+
+		private Node term(){
+			if (take("[")){
+				Node address = value();
+				expect("]");
+				return new Peek(address);
+			}
+			String token = peek();
+			if (token.length() == 0)
+				throw error("Expected a value at the end");
+			next++;
+			for (int i = 0; i < REGISTERS.length; i++)
+				if (token.equalsIgnoreCase(REGISTERS[i]))
+					return new Register(i);
+			if (token.equalsIgnoreCase("cycles"))
+				return new Cycles();
+			try{
+				if (token.toLowerCase().startsWith("0x"))
+					return new Constant(Long.parseLong(token.substring(2), 16));
+				if (Character.isDigit(token.charAt(0)))
+					return new Constant(Long.parseLong(token));
+			}
+			catch (NumberFormatException e){
+				throw error("Bad number " + token);
+			}
+			Integer label = labels == null ? null : labels.get(token.toUpperCase());
+			if (label == null)
+				throw error("Don't know what " + token + " is");
+			return new Constant(label);
+		}
+
+	}
+
+	/*
+	 * A value leaves a long on the stack, a condition jumps to target if it
+	 * comes out the same as when.
+	 */
+	private static abstract class Node{
+
+		void value(Compiler t){
+			throw t.error("Expected a value, not a condition");
+		}
+
+		void branch(Compiler t, boolean when, ClassBuilder.Label target){
+			throw t.error("Expected a condition, not a value");
+		}
+
+	}
+
+	private static class Constant
+		extends Node
+	{
+
+		long value;
+
+		Constant(long value){
+			this.value = value;
+		}
+
+		void value(Compiler t){
+			t.code.pushLong(value);
+		}
+
+	}
+
+	private static class Register
+		extends Node
+	{
+
+		int register;
+
+		Register(int register){
+			this.register = register;
+		}
+
+		void value(Compiler t){
+			t.code.load(ClassBuilder.ALOAD, R);
+			t.code.push(register);
+			t.code.op(ClassBuilder.IALOAD);
+			t.code.op(ClassBuilder.I2L);
+		}
+
+	}
+
+	private static class Cycles
+		extends Node
+	{
+
+		void value(Compiler t){
+			t.code.load(ClassBuilder.LLOAD, CYCLES);
+		}
+
+	}
+
+	/*
+	 * Leaves the address on the stack as an int for peek() or changed().
+	 */
+	private static void address(Compiler t, Node address){
+		t.code.load(ClassBuilder.ALOAD, THIS);
+		t.code.load(ClassBuilder.ALOAD, M);
+		address.value(t);
+		t.code.op(ClassBuilder.L2I);
+	}
+
+	private static class Peek
+		extends Node
+	{
+
+		Node address;
+
+		Peek(Node address){
+			this.address = address;
+		}
+
+		void value(Compiler t){
+			address(t, address);
+			t.code.op(ClassBuilder.INVOKEVIRTUAL);
+			t.code.u2(t.c.methodRef(CONDITION_CLASS, "peek", "(L" + MEMORY_CLASS + ";I)I"));
+			t.code.op(ClassBuilder.I2L);
+		}
+
+	}
+
+	private static class Sum
+		extends Node
+	{
+
+		int op;
+		Node left;
+		Node right;
+
+		Sum(int op, Node left, Node right){
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		void value(Compiler t){
+			left.value(t);
+			right.value(t);
+			t.code.op(op);
+		}
+
+	}
+
+	private static class Compare
+		extends Node
+	{
+
+		// ==, !=, <, <=, > and >= of the result of LCMP with 0
+		private static final int[] JUMPS = {ClassBuilder.IFEQ, ClassBuilder.IFNE, ClassBuilder.IFLT, ClassBuilder.IFLE, ClassBuilder.IFGT, ClassBuilder.IFGE};
+		private static final int[] NEGATED = {ClassBuilder.IFNE, ClassBuilder.IFEQ, ClassBuilder.IFGE, ClassBuilder.IFGT, ClassBuilder.IFLE, ClassBuilder.IFLT};
+
+		int op;
+		Node left;
+		Node right;
+
+		Compare(int op, Node left, Node right){
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		void branch(Compiler t, boolean when, ClassBuilder.Label target){
+			left.value(t);
+			right.value(t);
+			t.code.op(ClassBuilder.LCMP);
+			t.code.jump(when ? JUMPS[op] : NEGATED[op], target);
+		}
+
+	}
+
+	private static class Changed
+		extends Node
+	{
+
+		Node address;
+		int slot;
+
+		Changed(Node address, int slot){
+			this.address = address;
+			this.slot = slot;
+		}
+
+		void branch(Compiler t, boolean when, ClassBuilder.Label target){
+			t.code.load(ClassBuilder.ALOAD, THIS);
+			t.code.load(ClassBuilder.ALOAD, M);
+			t.code.push(slot);
+			address.value(t);
+			t.code.op(ClassBuilder.L2I);
+			t.code.op(ClassBuilder.INVOKEVIRTUAL);
+			t.code.u2(t.c.methodRef(CONDITION_CLASS, "changed", "(L" + MEMORY_CLASS + ";II)Z"));
+			t.code.jump(when ? ClassBuilder.IFNE : ClassBuilder.IFEQ, target);
+		}
+
+	}
+
+	private static class Not
+		extends Node
+	{
+
+		Node inner;
+
+		Not(Node inner){
+			this.inner = inner;
+		}
+
+		void branch(Compiler t, boolean when, ClassBuilder.Label target){
+			inner.branch(t, ! when, target);
+		}
+
+	}
+
+	/*
+	 * && or ||, short-circuited.
+	 */
+	private static class Logic
+		extends Node
+	{
+
+		boolean and;
+		Node left;
+		Node right;
+
+		Logic(boolean and, Node left, Node right){
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		void branch(Compiler t, boolean when, ClassBuilder.Label target){
+			if (when != and){ // either side alone decides it
+				left.branch(t, when, target);
+				right.branch(t, when, target);
+				return;
+			}
+			ClassBuilder.Label decided = new ClassBuilder.Label();
+			left.branch(t, ! when, decided);
+			right.branch(t, when, target);
+			t.code.mark(decided);
+		}
+
+	}
+
+}
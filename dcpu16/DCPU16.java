@@ -2,25 +2,85 @@ package dcpu16;
 
 // Specification: http://0x10c.com/doc/dcpu-16.txt
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 import hexer.*;
 
 public class DCPU16{
 
 	private Memory m;
 	private Registers r;
-	private boolean skipInstruction = false;
-	private boolean running = false;
-	private boolean stop = false;
-	private long startTime = -1;
+	DecodeCache decoded = new DecodeCache();
+	private Recompiler recompiler;
+	private TableInterpreter table;
+	private IdleDetector idle;
+	private final Scheduler events = new Scheduler();
+	private Intrinsics intrinsics; // made when first asked for
+	private Breakpoints breakpoints; // likewise
+	private History history; // null unless recording
+	private volatile Journal journal; // input() is kept in, if it isn't null
+	private volatile Journal replaying; // the journal being played back, when input() is ignored
+	boolean skipInstruction = false;
+	private boolean cycleExact = false;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.STOPPED);
+	private final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+	private volatile long settled = 0; // times the runner has sat still in PAUSED, see await()
+	private volatile Thread waiter; // waiting in pause(), singleStep() or stop() for the runner
+	private volatile boolean halted = false;
+	private Listener[] listeners = new Listener[0];
+	private final Object listenerLock = new Object(); // run() holds the DCPU16's own lock the whole time
+	private long startTime = -1; // nanoTime
 	private long startCycles = -1;
-	private long cycles = 0;
+	private long paceTime = -1; // where the governor counts from, see pace()
+	private long paceCycles = -1;
+	long cycles = 0;
 	private long hertzLimit = 0;
+	private Fault fault;
+	int instructionStart; // PC before the instruction being executed, for faults
+	private boolean throwing = false;
+	private FaultCounter faultCounter;
+
+	private Trace trace; // null unless tracing
+
+	public static final int CONTEXT_LONGS = 4; // see saveContext()
+
+	private static final long SLICE = 10000; // cycles run() goes between looking at its state and speed
+	private static final long MAX_LAG = 50000000; // nanoseconds the governor will catch up on after a stall
+	private static final long MAX_IDLE = 100000000; // nanoseconds run() parks while idle before it looks again
+
+	/**
+	 * Where run() is at. Only run() leaves STOPPED, HALTED or FAULTED, which
+	 * is where it ends up when it returns. pause(), resume(), singleStep() and
+	 * stop() move it between the others from any thread.
+	 */
+	public enum State{
+		STOPPED, RUNNING, PAUSED, STEPPING, HALTED, FAULTED
+	}
+
+	/**
+	 * Told when a DCPU16 halts. Called on the thread that was running it, just
+	 * before run() returns.
+	 */
+	public interface Listener{
 
-	private boolean debugging = false;
+		public void halted(DCPU16 d);
 
+	}
+
+	/**
+	 * Something to stop at, checked by runUntil() after every instruction. See
+	 * CompiledCondition for ones written as text.
+	 */
+	public interface Condition{
+
+		public boolean met(DCPU16 d);
+
+	}
 
 	public DCPU16(){
-		init(new Memory(0x10000));
+		init(new FlatMemory());
 	}
 
 	public DCPU16(Memory m){
@@ -30,6 +90,15 @@ public class DCPU16{
 	private void init(Memory m){
 		this.m = m;
 		m.setMask(0xFFFF);
+		m.addListener(decoded);
+		m.setFaultListener(new Memory.FaultListener(){
+			public void pastEnd(int location, boolean write){
+				Thread runner = DCPU16.this.runner.get();
+				if (runner != null && runner != Thread.currentThread()) // not from an instruction
+					throw new RuntimeException(Fault.message(write ? Fault.Kind.WRITE_PAST_END : Fault.Kind.READ_PAST_END, location));
+				fault(write ? Fault.Kind.WRITE_PAST_END : Fault.Kind.READ_PAST_END, location);
+			}
+		});
 		r = new Registers();
 	}
 
@@ -41,283 +110,1199 @@ public class DCPU16{
 		return r;
 	}
 
-	public void setDebug(boolean on){
-		debugging = on;
+	/**
+	 * Turns the Recompiler on or off for this DCPU16. While it's on, run()
+	 * executes hot code as translated JVM classes. step() always interprets.
+	 */
+	public void setRecompiling(boolean on){
+		if (on && recompiler == null){
+			recompiler = new Recompiler(this);
+			m.addListener(recompiler);
+		}
+		else if (! on && recompiler != null){
+			m.removeListener(recompiler);
+			recompiler = null;
+		}
+	}
+
+	public boolean isRecompiling(){
+		return recompiler != null;
+	}
+
+	Recompiler recompiler(){
+		return recompiler;
+	}
+
+	/**
+	 * Turns on the TableInterpreter, which run() uses instead of step() for
+	 * the instructions it has a handler for. The Recompiler still comes first
+	 * if it's on too.
+	 */
+	public void setTableDispatch(boolean on){
+		table = on ? new TableInterpreter(this) : null;
+	}
+
+	public boolean isTableDispatch(){
+		return table != null;
+	}
+
+	/**
+	 * Turns cycle-exact mode on or off (it's off by default). Cycles are
+	 * counted the same either way, and so are the results, but the faster
+	 * engines don't stop after every instruction: the Recompiler runs a block
+	 * whole and the TableInterpreter runs an IFx and the jump after it in one
+	 * go, and Intrinsics runs a routine all at once. So when off, an event
+	 * may fire a few instructions later than step() alone would fire it.
+	 * When on, those only run where no event can come due in the middle, and
+	 * every event fires at the same instruction whichever engine is on.
+	 * Journals (see Journal) then replay the same on any engine.
+	 */
+	public void setCycleExact(boolean on){
+		cycleExact = on;
+	}
+
+	public boolean isCycleExact(){
+		return cycleExact;
+	}
+
+	public long cycles(){
+		return cycles;
+	}
+
+	/**
+	 * Packs the registers, the pending skip and the cycle count into
+	 * CONTEXT_LONGS longs from offset: A, B, C and X sixteen bits apiece in the
+	 * first, Y, Z, I and J in the second, PC, SP, O and the skip in the third
+	 * and the cycles in the fourth. Only while the DCPU16 isn't running.
+	 */
+	public void saveContext(long[] context, int offset){
+		int[] v = r.values();
+		context[offset] = v[0] | (long)v[1] << 16 | (long)v[2] << 32 | (long)v[3] << 48;
+		context[offset + 1] = v[4] | (long)v[5] << 16 | (long)v[6] << 32 | (long)v[7] << 48;
+		context[offset + 2] = v[8] | (long)v[9] << 16 | (long)v[10] << 32 | (skipInstruction ? 1L << 48 : 0);
+		context[offset + 3] = cycles;
+	}
+
+	public void restoreContext(long[] context, int offset){
+		unpack(context[offset], context[offset + 1], context[offset + 2], context[offset + 3]);
+	}
+
+	/**
+	 * The same as saveContext(long[], int), as CONTEXT_LONGS longs put at the
+	 * buffer's position.
+	 */
+	public void saveContext(ByteBuffer context){
+		int[] v = r.values();
+		context.putLong(v[0] | (long)v[1] << 16 | (long)v[2] << 32 | (long)v[3] << 48);
+		context.putLong(v[4] | (long)v[5] << 16 | (long)v[6] << 32 | (long)v[7] << 48);
+		context.putLong(v[8] | (long)v[9] << 16 | (long)v[10] << 32 | (skipInstruction ? 1L << 48 : 0));
+		context.putLong(cycles);
+	}
+
+	public void restoreContext(ByteBuffer context){
+		unpack(context.getLong(), context.getLong(), context.getLong(), context.getLong());
+	}
+
+	private void unpack(long first, long second, long third, long fourth){
+		int[] v = r.values();
+		v[0] = (int)first & 0xFFFF;
+		v[1] = (int)(first >> 16) & 0xFFFF;
+		v[2] = (int)(first >> 32) & 0xFFFF;
+		v[3] = (int)(first >> 48) & 0xFFFF;
+		v[4] = (int)second & 0xFFFF;
+		v[5] = (int)(second >> 16) & 0xFFFF;
+		v[6] = (int)(second >> 32) & 0xFFFF;
+		v[7] = (int)(second >> 48) & 0xFFFF;
+		v[8] = (int)third & 0xFFFF;
+		v[9] = (int)(third >> 16) & 0xFFFF;
+		v[10] = (int)(third >> 32) & 0xFFFF;
+		skipInstruction = ((third >> 48) & 1) != 0;
+		cycles = fourth;
 	}
 
-	private void debug(String s){
-		if (debugging)
-			System.out.println(s);
+	/**
+	 * Turns on spotting busy-wait loops (off by default, see IdleDetector).
+	 * runFor() skips the rest of its budget in whole laps of such a loop, so
+	 * with a speed limit the governor gets to park instead. Without one, run()
+	 * parks until the loop has something new to read, and no cycles go by
+	 * while it's parked.
+	 * Memories smaller than 64K words don't get idle detection.
+	 */
+	public void setIdleDetection(boolean on){
+		if (on && idle == null && m.size() >= 0x10000){
+			idle = new IdleDetector(this);
+			m.addListener(idle);
+		}
+		else if (! on && idle != null){
+			m.removeListener(idle);
+			idle = null;
+		}
 	}
 
+	public boolean isIdleDetection(){
+		return idle != null;
+	}
+
+	public void addListener(Listener listener){
+		synchronized(listenerLock){
+			Listener[] more = new Listener[listeners.length + 1];
+			System.arraycopy(listeners, 0, more, 0, listeners.length);
+			more[listeners.length] = listener;
+			listeners = more;
+		}
+	}
+
+	public void removeListener(Listener listener){
+		synchronized(listenerLock){
+			for (int i = 0; i < listeners.length; i++)
+				if (listeners[i] == listener){
+					Listener[] fewer = new Listener[listeners.length - 1];
+					System.arraycopy(listeners, 0, fewer, 0, i);
+					System.arraycopy(listeners, i + 1, fewer, i, fewer.length - i);
+					listeners = fewer;
+					return;
+				}
+		}
+	}
+
+	/**
+	 * True once run() or runFor() has found PC on an instruction that only
+	 * jumps to itself (SET PC, crash and the like). Nothing can happen after
+	 * that, so they stop there instead of spinning. step() still executes it.
+	 * Moving PC somewhere else (or writing over the jump) un-halts it.
+	 */
+	public boolean isHalted(){
+		return halted && atSelfJump();
+	}
+
+	/**
+	 * The fault that stopped run(), runFor() or runUntil(), or that came up in
+	 * the last step(), or null if there wasn't one. They stop after the faulting
+	 * instruction, which finishes as if reads past the end of memory gave 0,
+	 * writes past it went nowhere and a reserved instruction did nothing.
+	 */
+	public Fault fault(){
+		return fault;
+	}
+
+	/**
+	 * The kind of fault() there was, or Fault.Kind.OK.
+	 */
+	public Fault.Kind status(){
+		return fault == null ? Fault.Kind.OK : fault.kind;
+	}
+
+	/**
+	 * Counts every fault from now on in the given FaultCounter, or stops
+	 * counting if it's null. Fleet.view() gives its DCPU16s the fleet's.
+	 */
+	public void setFaultCounter(FaultCounter counter){
+		faultCounter = counter;
+	}
+
+	public FaultCounter faultCounter(){
+		return faultCounter;
+	}
+
+	/**
+	 * Throws faults as RuntimeExceptions, the way the DCPU16 used to, instead
+	 * of just keeping them. Off by default.
+	 */
+	public void setThrowing(boolean on){
+		throwing = on;
+	}
+
+	public boolean isThrowing(){
+		return throwing;
+	}
+
+	/*
+	 * Keeps the first fault in an instruction, since whatever goes wrong after
+	 * it is only a consequence.
+	 */
+	private void fault(Fault.Kind kind, int detail){
+		if (fault == null){
+			int pc = instructionStart;
+			fault = new Fault(kind, pc, pc < m.size() ? m.read(pc) : 0, cycles, detail);
+			if (faultCounter != null)
+				faultCounter.add(kind);
+		}
+		if (throwing)
+			throw new RuntimeException(fault.message());
+	}
+
+	/**
+	 * Writes to memory from outside the program, like a key going into the
+	 * keyboard buffer. It should be called between instructions: from a
+	 * Scheduler event while the DCPU16 is running, or while it isn't. The
+	 * write is kept in the journal being recorded, if there is one, and
+	 * ignored while one is being replayed.
+	 */
+	public void input(int address, int value){
+		if (replaying != null)
+			return;
+		m.write(address, value);
+		Journal journal = this.journal;
+		if (journal != null)
+			journal.add(cycles, address, value);
+	}
+
+	/**
+	 * Starts keeping what comes in through input() in journal, or stops if
+	 * it's null.
+	 */
+	public void record(Journal journal){
+		if (journal != null)
+			journal.begin(cycles);
+		this.journal = journal;
+	}
+
+	/**
+	 * The journal being recorded, or null.
+	 */
+	public Journal journal(){
+		return journal;
+	}
+
+	/**
+	 * Plays the writes in journal back at the cycles they were recorded at,
+	 * ignoring input() until it runs out. Throws IllegalStateException unless
+	 * the cycle count is where the recording started. Only while the DCPU16
+	 * isn't running.
+	 */
+	public void replay(Journal journal){
+		if (journal.start() != cycles)
+			throw new IllegalStateException("The journal starts at " + journal.start() + " cycles, not " + cycles);
+		if (journal.size() == 0)
+			return;
+		replaying = journal;
+		events.schedule(journal.cycle(0), journal.new Player());
+	}
+
+	public boolean isReplaying(){
+		return replaying != null;
+	}
+
+	void replayed(Journal journal){
+		if (replaying == journal)
+			replaying = null;
+	}
+
+	/**
+	 * Where devices schedule what they do in terms of this DCPU16's cycles.
+	 */
+	public Scheduler scheduler(){
+		return events;
+	}
+
+	/**
+	 * The library routines this DCPU16 runs in Java instead of interpreting,
+	 * none until some are bound (see Intrinsics).
+	 */
+	public Intrinsics intrinsics(){
+		if (intrinsics == null)
+			intrinsics = new Intrinsics(this);
+		return intrinsics;
+	}
+
+	/**
+	 * The breakpoints and watchpoints this DCPU16 stops at, none until some
+	 * are set.
+	 */
+	public Breakpoints breakpoints(){
+		if (breakpoints == null)
+			breakpoints = new Breakpoints();
+		return breakpoints;
+	}
+
+	/**
+	 * Starts taking a checkpoint every interval cycles and keeping the last
+	 * checkpoints of them in a History, to go backwards with, or stops if
+	 * interval is 0. Only while the DCPU16 isn't running.
+	 */
+	public void setRecording(long interval, int checkpoints){
+		if (history != null)
+			history.stop();
+		history = interval > 0 ? new History(this, interval, checkpoints) : null;
+	}
+
+	/**
+	 * Starts recording with the default History.INTERVAL and
+	 * History.CHECKPOINTS, or stops.
+	 */
+	public void setRecording(boolean on){
+		setRecording(on ? History.INTERVAL : 0, History.CHECKPOINTS);
+	}
+
+	/**
+	 * The history being recorded, or null if recording is off.
+	 */
+	public History history(){
+		return history;
+	}
+
+	/**
+	 * Starts keeping the last entries instructions in a Trace, or stops if
+	 * entries is 0. Tracing keeps to step(), so the faster engines sit out
+	 * while it's on.
+	 */
+	public void setTracing(int entries){
+		trace = entries > 0 ? new Trace(entries) : null;
+	}
+
+	/**
+	 * The trace being kept, or null if tracing is off.
+	 */
+	public Trace trace(){
+		return trace;
+	}
+
+	/**
+	 * Limits run() to hertzLimit cycles per second, or takes the limit off if
+	 * it's 0.
+	 */
 	public void setSpeed(long hertzLimit){
 		this.hertzLimit = hertzLimit;
-		startTime = new java.util.Date().getTime();
+		startTime = System.nanoTime();
 		startCycles = cycles;
+		paceTime = startTime;
+		paceCycles = cycles;
 	}
 
 	/**
-	 * Runs step() in a loop until a crash or until some other thread calls stop().
+	 * Runs in slices of runFor() until a crash or until some other thread calls
+	 * stop(). The state and the speed limit are looked at between slices, which
+	 * are a millisecond's worth of cycles when there's a speed limit. Only one
+	 * thread can be in run() at a time. Hitting a breakpoint pauses it.
+	 * With idle detection on and no speed limit, a DCPU16 that's busy-waiting
+	 * is parked rather than run, and its cycle count stands still meanwhile.
 	 */
 	public void run(){
+		if (! runner.compareAndSet(null, Thread.currentThread()))
+			throw new IllegalStateException("DCPU16 is already running");
 		doStart();
-		synchronized(this){
+		try{
 			while (true){
-				if (stop){
-					doStop();
+				State s = state.get();
+				if (s == State.STOPPED)
+					return;
+				if (fault != null){
+					state.set(State.FAULTED);
 					return;
 				}
-				try{
+				if (s == State.PAUSED){
+					sitStill();
+					continue;
+				}
+				if (s == State.STEPPING){
 					step();
-					if (hertzLimit > 0 && hertz() > hertzLimit)
-						try{
-							wait(10);
-						}
-						catch (InterruptedException e){}
+					state.compareAndSet(State.STEPPING, State.PAUSED);
+					continue;
 				}
-				catch (RuntimeException e){
-					doStop();
-					debug("" + e);
-					throw e;
+				if (halted){
+					if (! state.compareAndSet(State.RUNNING, State.HALTED))
+						continue; // paused or stopped in the meantime
+					Listener[] listeners = this.listeners;
+					for (int i = 0; i < listeners.length; i++)
+						listeners[i].halted(this);
+					return;
+				}
+				runFor(hertzLimit > 0 ? Math.max(1, Math.min(SLICE, hertzLimit / 1000)) : SLICE);
+				if (breakpoints != null && breakpoints.hit() != null)
+					state.compareAndSet(State.RUNNING, State.PAUSED);
+				else if (hertzLimit > 0)
+					pace();
+				else if (idle != null && idle.period() > 0 && state.get() == State.RUNNING){
+					if (events.watch()) // anything scheduled from now on unparks us
+						idle.park(MAX_IDLE);
+					events.unwatch();
 				}
 			}
 		}
+		catch (RuntimeException e){
+			state.set(State.FAULTED);
+			throw e;
+		}
+		finally{
+			doStop();
+		}
+	}
+
+	/*
+	 * Parks the runner while PAUSED, letting whoever paused it know that it's
+	 * no longer touching anything. The governor starts counting afresh after,
+	 * so that the pause isn't made up for.
+	 */
+	private void sitStill(){
+		settled++;
+		wake(waiter);
+		while (state.get() == State.PAUSED)
+			LockSupport.park(this);
+		paceTime = System.nanoTime();
+		paceCycles = cycles;
+	}
+
+	/**
+	 * Stops run() between slices (or right away if it's parked) and waits for
+	 * it to sit still, so that memory and registers can be looked at and
+	 * changed. Returns false if it wasn't running.
+	 */
+	public boolean pause(){
+		long settled = this.settled;
+		if (! state.compareAndSet(State.RUNNING, State.PAUSED))
+			return state.get() == State.PAUSED;
+		wake(runner.get());
+		await(settled);
+		return true;
+	}
+
+	/**
+	 * Lets a paused run() carry on. Returns false if it wasn't paused.
+	 */
+	public boolean resume(){
+		if (! state.compareAndSet(State.PAUSED, State.RUNNING))
+			return false;
+		wake(runner.get());
+		return true;
+	}
+
+	/**
+	 * Executes one instruction: on the runner if run() is paused, or right here
+	 * if nothing is running. Throws IllegalStateException if run() is running
+	 * and hasn't been paused.
+	 */
+	public void singleStep(){
+		long settled = this.settled;
+		if (state.compareAndSet(State.PAUSED, State.STEPPING)){
+			wake(runner.get());
+			await(settled);
+		}
+		else if (runner.get() == null)
+			step();
+		else
+			throw new IllegalStateException("Pause the DCPU16 before stepping it");
+	}
+
+	public State state(){
+		return state.get();
+	}
+
+	public boolean isRunning(){
+		State s = state.get();
+		return s == State.RUNNING || s == State.PAUSED || s == State.STEPPING;
+	}
+
+	/*
+	 * Waits for the runner to sit still again, or to be gone.
+	 */
+	private void await(long settled){
+		Thread runner;
+		waiter = Thread.currentThread();
+		while (this.settled == settled && (runner = this.runner.get()) != null && runner != Thread.currentThread())
+			LockSupport.parkNanos(this, 1000000); // in case the wake comes before waiter is set
+		waiter = null;
+	}
+
+	private static void wake(Thread thread){
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Parks until the wall clock catches up with the cycles run since paceTime.
+	 * If we've fallen behind (the host was busy, a debugger stopped us...) the
+	 * next slices run without parking until we're caught up, but we never try to
+	 * make up for more than MAX_LAG.
+	 */
+	private void pace(){
+		long due = paceTime + (long)((cycles - paceCycles) * 1000000000.0 / hertzLimit);
+		long now = System.nanoTime();
+		if (now - due > MAX_LAG){
+			paceTime += now - due - MAX_LAG;
+			return;
+		}
+		while (due > now && state.get() == State.RUNNING){
+			LockSupport.parkNanos(due - now);
+			now = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Runs for at least the given number of cycles with whichever engine is
+	 * turned on, without stopping to check anything, and returns how many cycles
+	 * it really ran. It only stops between instructions (or compiled blocks), so
+	 * it may overrun a little. status() then says whether it stopped on a
+	 * fault, and which. Crashes are thrown as usual. If the DCPU16 is
+	 * idling, the budget is used up in whole laps of the idle loop, and the
+	 * rest of a lap up to the next scheduled event is run as usual, so that
+	 * events fire at the same cycle as they would without idle detection. If
+	 * it has halted, nothing runs and 0 comes back.
+	 * With any breakpoints set, it goes one step() at a time and stops early
+	 * at one (see Breakpoints).
+	 */
+	public long runFor(long budget){
+		fault = null;
+		boolean watching = watching();
+		halted = atSelfJump();
+		if (halted)
+			return 0;
+		long start = cycles;
+		long end = start + budget;
+		while (cycles < end && fault == null){
+			long until = events.fire(this, end);
+			if (watching){
+				while (cycles < until && fault == null)
+					if (! watchedStep())
+						return cycles - start;
+				continue;
+			}
+			if (idle != null){
+				long period = idle.probe(until);
+				if (fault != null)
+					break;
+				if (period > 0 && cycles < until)
+					cycles += (until - cycles) / period * period;
+			}
+			long stop = cycleExact ? until : Long.MAX_VALUE;
+			if (recompiler != null && trace == null)
+				while (cycles < until && fault == null)
+					recompiler.execute(stop);
+			else if (table != null && trace == null)
+				while (cycles < until && fault == null)
+					table.execute(stop);
+			else
+				while (cycles < until && fault == null)
+					step();
+		}
+		return cycles - start;
+	}
+
+	/**
+	 * Runs one instruction at a time until the condition is met, until at
+	 * least maxCycles have gone by, until a fault or until a breakpoint.
+	 * Returns true if the condition was met. The Recompiler isn't used here,
+	 * since its blocks can't stop in the middle.
+	 */
+	public boolean runUntil(Condition condition, long maxCycles){
+		long end = cycles + maxCycles;
+		fault = null;
+		boolean watching = watching();
+		while (cycles < end && fault == null){
+			long until = events.fire(this, end);
+			if (watching)
+				while (cycles < until && fault == null){
+					if (! watchedStep())
+						return false;
+					if (condition.met(this))
+						return true;
+				}
+			else if (table != null && trace == null)
+				while (cycles < until && fault == null){
+					table.execute(cycleExact ? until : Long.MAX_VALUE);
+					if (condition.met(this))
+						return true;
+				}
+			else
+				while (cycles < until && fault == null){
+					step();
+					if (condition.met(this))
+						return true;
+				}
+		}
+		return false;
+	}
+
+	public boolean runUntil(Condition condition){
+		return runUntil(condition, Long.MAX_VALUE - cycles);
+	}
+
+	/*
+	 * Whether runFor() and runUntil() have to look at breakpoints, which
+	 * they decide as they start. The last hit is forgotten either way.
+	 */
+	private boolean watching(){
+		if (breakpoints == null)
+			return false;
+		breakpoints.start();
+		return breakpoints.isArmed();
+	}
+
+	/*
+	 * step(), unless there's a breakpoint at PC. Returns false if it stopped
+	 * at one, before the instruction or after it for a watchpoint.
+	 */
+	private boolean watchedStep(){
+		if (skipInstruction){
+			step();
+			return true;
+		}
+		int pc = r.read(Registers.PC);
+		if (breakpoints.stopsAt(pc, cycles))
+			return false;
+		breakpoints.watch(r.values(), m, pc);
+		step();
+		return ! breakpoints.touched(pc, cycles);
+	}
+
+	/*
+	 * Whether the next instruction is a SET, ADD or SUB of PC with a literal
+	 * that leaves PC where it is, with no skip pending, and (for ADD and SUB,
+	 * which write O) with O already holding what it would write. Anything
+	 * else (even a jump to itself through memory or a register) could still
+	 * change.
+	 */
+	private boolean atSelfJump(){
+		if (skipInstruction)
+			return false;
+		int pc = r.read(Registers.PC);
+		if (pc + 1 >= m.size())
+			return false;
+		int word = m.read(pc);
+		int instruction = word & 0xF;
+		if (((word >> 4) & 0x3F) != 0x1C || instruction < 0x1 || instruction > 0x3)
+			return false;
+		int b = (word >> 10) & 0x3F;
+		int v;
+		int length = 1;
+		if (b >= 0x20)
+			v = b - 0x20;
+		else if (b == 0x1F){
+			v = m.read(pc + 1);
+			length = 2;
+		}
+		else
+			return false;
+		if (instruction == 0x2)
+			v = pc + length + v;
+		else if (instruction == 0x3)
+			v = pc + length - v;
+		if (instruction != 0x1 && ((v >> 16) & 0xFFFF) != r.read(Registers.O))
+			return false;
+		return (v & 0xFFFF) == pc;
 	}
 
 	private void doStart(){
-		stop = false;
-		running = true;
-		startTime = new java.util.Date().getTime();
+		state.set(State.RUNNING);
+		fault = null;
+		halted = false;
+		startTime = System.nanoTime();
 		startCycles = cycles;
+		paceTime = startTime;
+		paceCycles = cycles;
 	}
 
 	private void doStop(){
-		stop = false;
-		running = false;
 		startTime = -1;
 		startCycles = -1;
+		runner.set(null);
+		wake(waiter);
 	}
 
+	/**
+	 * Makes run() return and waits for it to, unless this is the thread that's
+	 * running it (a Listener, say).
+	 */
 	public void stop(){
-		if (running)
-			stop = true;
+		State s;
+		do{
+			s = state.get();
+			if (s != State.RUNNING && s != State.PAUSED && s != State.STEPPING)
+				return;
+		} while (! state.compareAndSet(s, State.STOPPED));
+		wake(runner.get()); // don't wait out the governor
+		await(settled);
 	}
 
+	/**
+	 * The effective clock rate since run() started or the speed was last set,
+	 * stalls included.
+	 */
 	public double hertz(){
 		if (startTime < 0 || startCycles < 0)
 			return 0.0;
 		long cyclesPassed = cycles - startCycles;
-		long timePassed = new java.util.Date().getTime() - startTime;
+		long timePassed = System.nanoTime() - startTime;
 		if (timePassed == 0)
 			return cyclesPassed > 0 ? Double.POSITIVE_INFINITY : 0.0;
 		else
-			return 1000 * cyclesPassed / timePassed; // cycles / milliseconds => kHz, kHz * 1000 => hertz
+			return cyclesPassed * 1000000000.0 / timePassed;
 	}
 
-	public void step(){
-		int word = nextWord().read();
+	/**
+	 * Runs one instruction, and gives back the kind of fault it had, or
+	 * Fault.Kind.OK.
+	 */
+	public Fault.Kind step(){
+		int pc = r.read(Registers.PC);
+		instructionStart = pc;
+		fault = null;
+		int entry = decoded.entries[pc];
+		if (entry == 0 && (entry = decoded.decode(m, pc)) == 0){
+			if (intrinsics == null || skipInstruction || trace != null || (breakpoints != null && breakpoints.isArmed())
+					|| (cycleExact && events.next() != Long.MAX_VALUE) || ! intrinsics.call(pc))
+				stepUncached();
+			return status();
+		}
+		int word = DecodeCache.word(entry);
+		int length = DecodeCache.length(entry);
+		r.write(Registers.PC, pc + length);
 		int instruction = word & 0xF;
 		int a = (word >> 4) & 0x3F;
 		int b = (word >> 10) & 0x3F;
-		debug(Hexer.hex(word) + " => " + Hexer.hex(instruction) + " a: " + Hexer.hex(a) + " b: " + Hexer.hex(b));
+		if (skipInstruction){ // the next words are already eaten, and working out operands has no side effects here
+			skip(cycles);
+			if (trace != null)
+				trace(word, 0, 0, true);
+			return status();
+		}
+		cycles += length - 1;
+		int ao, bo = 0;
+		if (instruction == 0)
+			nonbasic(a, ao = operand(b, (pc + 1) & 0xFFFF, decoded.aNext[pc]));
+		else{
+			ao = operand(a, (pc + 1) & 0xFFFF, decoded.aNext[pc]);
+			bo = operand(b, (pc + length - 1) & 0xFFFF, decoded.bNext[pc]);
+			execute(instruction, ao, bo);
+		}
+		if (trace != null)
+			trace(word, ao, bo, false);
+		return status();
+	}
+
+	/**
+	 * Fetches and decodes straight from memory, one word at a time. Used when an
+	 * instruction can't be cached because it hangs off the end of memory.
+	 */
+	private void stepUncached(){
+		int word = m.read(nextWord());
+		int instruction = word & 0xF;
+		int a = (word >> 4) & 0x3F;
+		int b = (word >> 10) & 0x3F;
+		long priorCycles = cycles; // magic is happening
+		int ao, bo = 0;
+		boolean skipped = skipInstruction;
 		if (instruction == 0){
-			nonbasic(a, b);
+			ao = operand(b);
+			if (skipped)
+				skip(priorCycles);
+			else
+				nonbasic(a, ao);
 		}
 		else{
-			long priorCycles = cycles; // Some of the cycles stuff in the spec is actually just magic
-			Accessor aa = accessor(a);
-			Accessor ba = accessor(b);
-			if (skipInstruction){ // has to happen after we lookup the accessors, in case one needs to eat the next word
-				skipInstruction = false;
-				cycles = priorCycles + 1;
-				debug("Skipped instruction");
-				return;
-			}
-			switch (instruction){
-				case 0x1:
-					set(aa, ba); break;
-				case 0x2:
-					add(aa, ba); break;
-				case 0x3:
-					sub(aa, ba); break;
-				case 0x4:
-					mul(aa, ba); break;
-				case 0x5:
-					div(aa, ba); break;
-				case 0x6:
-					mod(aa, ba); break;
-				case 0x7:
-					shl(aa, ba); break;
-				case 0x8:
-					shr(aa, ba); break;
-				case 0x9:
-					band(aa, ba); break;
-				case 0xA:
-					bor(aa, ba); break;
-				case 0xB:
-					bxor(aa, ba); break;
-				case 0xC:
-					ife(aa, ba); break;
-				case 0xD:
-					ifn(aa, ba); break;
-				case 0xE:
-					ifg(aa, ba); break;
-				case 0xF:
-					ifb(aa, ba); break;
-				default: // should be impossible because of word & 0xF above
-					throw new RuntimeException("Instruction " + instruction + " not yet available");
-			}
+			ao = operand(a);
+			bo = operand(b);
+			if (skipped) // has to happen after we lookup the operands, in case one needs to eat the next word
+				skip(priorCycles);
+			else
+				execute(instruction, ao, bo);
 		}
+		if (trace != null)
+			trace(word, ao, bo, skipped);
+	}
+
+	private void skip(long priorCycles){
+		skipInstruction = false;
+		cycles = priorCycles + 1;
+	}
+
+	private void trace(int word, int ao, int bo, boolean skipped){
+		int flags = skipped ? Trace.SKIPPED : 0;
+		if (skipInstruction)
+			flags |= Trace.SKIP_NEXT;
+		if (fault != null)
+			flags |= Trace.FAULTED;
+		int result = 0;
+		if (! skipped) // a JSR's result is where it went
+			result = (word & 0xF) == 0 ? r.read(Registers.PC) : peek(ao);
+		trace.record(cycles, instructionStart, word, ao, bo, flags, result, r.read(Registers.O));
 	}
 
-	private void set(Accessor aa, Accessor ba){
-		debug("SET " + aa + " " + ba);
-		debug("b=" + Hexer.hex(ba.read()));
-		aa.write(ba.read());
+	/*
+	 * What an instruction left in its a operand, without the side effects.
+	 */
+	private int peek(int operand){
+		if (operand == PUSH)
+			operand = r.read(Registers.SP);
+		else if (operand == POP)
+			operand = (r.read(Registers.SP) - 1) & 0xFFFF;
+		if (operand < REGISTER)
+			return operand < m.size() ? m.read(operand) : 0;
+		return read(operand);
+	}
+
+	private void execute(int instruction, int ao, int bo){
+		switch (instruction){
+			case 0x1:
+				set(ao, bo); break;
+			case 0x2:
+				add(ao, bo); break;
+			case 0x3:
+				sub(ao, bo); break;
+			case 0x4:
+				mul(ao, bo); break;
+			case 0x5:
+				div(ao, bo); break;
+			case 0x6:
+				mod(ao, bo); break;
+			case 0x7:
+				shl(ao, bo); break;
+			case 0x8:
+				shr(ao, bo); break;
+			case 0x9:
+				band(ao, bo); break;
+			case 0xA:
+				bor(ao, bo); break;
+			case 0xB:
+				bxor(ao, bo); break;
+			case 0xC:
+				ife(ao, bo); break;
+			case 0xD:
+				ifn(ao, bo); break;
+			case 0xE:
+				ifg(ao, bo); break;
+			case 0xF:
+				ifb(ao, bo); break;
+			default: // should be impossible because of word & 0xF above
+				throw new RuntimeException("Instruction " + instruction + " not yet available");
+		}
+	}
+
+	/*
+	 * Operands are plain ints so that step() never allocates. Memory locations
+	 * are stored as they are, everything else is tagged above the largest
+	 * location an instruction can produce ([0xFFFF + 0xFFFF]).
+	 * POP and PUSH move SP only when the instruction actually touches them, so
+	 * each instruction calls resolve() on them in the order the spec'd
+	 * accessors used to be read.
+	 */
+	static final int REGISTER = 0x100000;
+	static final int LITERAL = 0x200000;
+	static final int POP = 0x300000;
+	static final int PUSH = 0x400000;
+
+	private int operand(int resource){
+		if (! DecodeCache.hasNextWord(resource))
+			return operand(resource, 0, 0);
 		cycles++;
+		int location = nextWord();
+		return operand(resource, location, m.read(location));
 	}
 
-	private void add(Accessor aa, Accessor ba){
-		debug("ADD " + aa + " " + ba);
-		debug("a=" + Hexer.hex(aa.read()));
-		debug("b=" + Hexer.hex(ba.read()));
-		int v = aa.read() + ba.read();
-		aa.write(v & 0xFFFF);
-		r.o().write(v >> 16);
+	/**
+	 * location and next are the address and value of the operand's next word,
+	 * if it has one.
+	 */
+	private int operand(int resource, int location, int next){
+		switch (resource){
+			case 0x00: case 0x01: case 0x02: case 0x03: case 0x04: case 0x05: case 0x06: case 0x07:
+				return REGISTER | resource;
+			case 0x08: case 0x09: case 0x0A: case 0x0B: case 0x0C: case 0x0D: case 0x0E: case 0x0F:
+				return r.read(resource & 0x7);
+			case 0x10: case 0x11: case 0x12: case 0x13: case 0x14: case 0x15: case 0x16: case 0x17:
+				return r.read(resource & 0x7) + next;
+			case 0x18:
+				return POP;
+			case 0x19:
+				return r.read(Registers.SP);
+			case 0x1A:
+				return PUSH;
+			case 0x1B:
+				return REGISTER | Registers.SP;
+			case 0x1C:
+				return REGISTER | Registers.PC;
+			case 0x1D:
+				return REGISTER | Registers.O;
+			case 0x1E:
+				return next;
+			case 0x1F:
+				return location;
+			default:
+				return LITERAL | (resource & 0x1F);
+		}
+	}
+
+	private int resolve(int operand){
+		if (operand == POP)
+			return popStack();
+		if (operand == PUSH)
+			return pushStack();
+		return operand;
+	}
+
+	private int read(int operand){
+		if (operand < REGISTER)
+			return m.read(operand);
+		if (operand < LITERAL)
+			return r.read(operand & 0xF);
+		return operand & 0x1F;
+	}
+
+	private void write(int operand, int value){
+		if (operand < REGISTER)
+			m.write(operand, value);
+		else if (operand < LITERAL)
+			r.write(operand & 0xF, value);
+		// literals ignore writes as per spec
+	}
+
+	private void set(int ao, int bo){
+		bo = resolve(bo);
+		int v = read(bo);
+		write(resolve(ao), v);
+		cycles++;
+	}
+
+	private void add(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		bo = resolve(bo);
+		int vb = read(bo);
+		if (ao >= REGISTER) // resolving b may have moved SP
+			va = read(ao);
+		int v = va + vb;
+		write(ao, v & 0xFFFF);
+		r.write(Registers.O, v >> 16);
 		cycles+=2;
 	}
 
-	private void sub(Accessor aa, Accessor ba){
-		debug("SUB " + aa + " " + ba);
-		debug("a=" + Hexer.hex(aa.read()));
-		debug("b=" + Hexer.hex(ba.read()));
-		int v = aa.read() - ba.read();
-		aa.write(v & 0xFFFF);
-		r.o().write(v >> 16);
+	private void sub(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		bo = resolve(bo);
+		int vb = read(bo);
+		if (ao >= REGISTER) // resolving b may have moved SP
+			va = read(ao);
+		int v = va - vb;
+		write(ao, v & 0xFFFF);
+		r.write(Registers.O, v >> 16);
 		cycles+=2;
 	}
 
-	private void nonbasic(int instruction, int a){
-		long priorCycles = cycles; // magic is happening
-		Accessor aa = accessor(a);
-		if (skipInstruction){
-			skipInstruction = false;
-			cycles = priorCycles + 1;
-			debug("Skipped instruction");
-			return;
-		}
+	private void nonbasic(int instruction, int ao){
 		switch (instruction){
 			case 0x01:
-				jsr(aa); break;
+				jsr(ao); break;
 			default:
-				throw new RuntimeException("Non-basic instruction is reserved: " + Hexer.hex(instruction));
+				fault(Fault.Kind.RESERVED_INSTRUCTION, instruction);
 		}
 	}
 
-	private void jsr(Accessor aa){
-		debug("JSR " + aa);
-		m.write(pushStack(), r.pc().read());
-		r.pc().write(aa.read());
+	private void jsr(int ao){
+		m.write(pushStack(), r.read(Registers.PC));
+		r.write(Registers.PC, read(resolve(ao)));
 		cycles+=2;
 	}
 
-	public void mul(Accessor aa, Accessor ba){
+	private void mul(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int v = va * read(resolve(bo));
+		r.write(Registers.O, v >> 16);
+		write(ao, v & 0xFFFF);
+		cycles+=2;
+	}
+
+	/*
+	 * DIV and MOD read b once, before a is resolved, so that writing O (or
+	 * moving SP) can't leave them dividing by something else, or by 0.
+	 */
+	private void div(int ao, int bo){
+		int vb = read(resolve(bo));
+		if (vb == 0){
+			write(resolve(ao), 0);
+			r.write(Registers.O, 0);
+			return;
+		}
+		ao = resolve(ao);
+		int va = read(ao);
+		r.write(Registers.O, ((va << 16) / vb) & 0xFFFF);
+		write(ao, (va / vb) & 0xFFFF);
+		cycles+=3;
+	}
 
-		debug("MUL " + aa + " " + ba);
+	private void mod(int ao, int bo){
+		int vb = read(resolve(bo));
+		if (vb == 0){
+			write(resolve(ao), 0);
+			return;
+		}
+		ao = resolve(ao);
+		write(ao, read(ao) % vb);
+		cycles+=3;
+	}
+
+	private void shl(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int v = va << read(resolve(bo));
+		r.write(Registers.O, (v >> 16) & 0xFFFF);
+		write(ao, v & 0xFFFF);
+		cycles+=2;
+	}
+
+	private void shr(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int vb = read(resolve(bo));
+		if (ao >= REGISTER) // resolving b may have moved SP
+			va = read(ao);
+		r.write(Registers.O, ((va << 16) >> vb) & 0xFFFF);
+		write(ao, (va >> vb) & 0xFFFF);
+		cycles+=2;
+	}
+
+	private void band(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va & read(resolve(bo)));
+		cycles++;
+	}
+
+	private void bor(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va | read(resolve(bo)));
+		cycles++;
+	}
+
+	private void bxor(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va ^ read(resolve(bo)));
+		cycles++;
+	}
+
+	private void ife(int ao, int bo){
+		if (read(resolve(ao)) != read(resolve(bo)))
+			skipInstruction = true;
+		cycles+=2;
+	}
+
+	private void ifn(int ao, int bo){
+		if (read(resolve(ao)) == read(resolve(bo)))
+			skipInstruction = true;
+		cycles+=2;
+	}
+
+	private void ifg(int ao, int bo){
+		if (read(resolve(ao)) <= read(resolve(bo)))
+			skipInstruction = true;
+		cycles+=2;
+	}
+
+	private void ifb(int ao, int bo){
+		if ((read(resolve(ao)) & read(resolve(bo))) == 0)
+			skipInstruction = true;
+		cycles+=2;
+	}
+
+	/*
+	 * The Accessor forms of the instructions above. step() doesn't use them
+	 * any more, but they still work on whatever accessor() hands out.
+	 */
+
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
+	public void mul(Accessor aa, Accessor ba){
 		int v = aa.read() * ba.read();
-		r.o().write(v >> 16);
+		r.write(Registers.O, v >> 16);
 		aa.write(v & 0xFFFF);
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void div(Accessor aa, Accessor ba){
-
-		debug("DIV " + aa + " " + ba);
-		if (ba.read() == 0){
+		int vb = ba.read();
+		if (vb == 0){
 			aa.write(0);
-			r.o().write(0);
+			r.write(Registers.O, 0);
 			return;
 		}
-		r.o().write(((aa.read() << 16) / ba.read()) & 0xFFFF);
-		aa.write((aa.read() / ba.read()) & 0xFFFF);
+		int va = aa.read();
+		r.write(Registers.O, ((va << 16) / vb) & 0xFFFF);
+		aa.write((va / vb) & 0xFFFF);
 		cycles+=3;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void mod(Accessor aa, Accessor ba){
-
-		debug("MOD " + aa + " " + ba);
-		if (ba.read() == 0){
-			aa.write(0);		return;
+		int vb = ba.read();
+		if (vb == 0){
+			aa.write(0);
+			return;
 		}
-		aa.write(aa.read() % ba.read());
+		aa.write(aa.read() % vb);
 		cycles+=3;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void shl(Accessor aa, Accessor ba){
-
-		debug("SHL " + aa + " " + ba);
 		int v = aa.read() << ba.read();
-		r.o().write((v >> 16) & 0xFFFF);
+		r.write(Registers.O, (v >> 16) & 0xFFFF);
 		aa.write(v & 0xFFFF);
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void shr(Accessor aa, Accessor ba){
-
-		debug("SHR " + aa + " " + ba);
-		r.o().write(((aa.read() << 16) >> ba.read()) & 0xFFFF);
-		aa.write((aa.read() >> ba.read()) & 0xFFFF);
+		int va = aa.read(), vb = ba.read();
+		r.write(Registers.O, ((va << 16) >> vb) & 0xFFFF);
+		aa.write((va >> vb) & 0xFFFF);
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void band(Accessor aa, Accessor ba){
-
-		debug("AND " + aa + " " + ba);
 		aa.write(aa.read() & ba.read());
 		cycles++;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void bor(Accessor aa, Accessor ba){
-
-		debug("BOR " + aa + " " + ba);
 		aa.write(aa.read() | ba.read());
 		cycles++;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void bxor(Accessor aa, Accessor ba){
-
-		debug("XOR " + aa + " " + ba);
 		aa.write(aa.read() ^ ba.read());
 		cycles++;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void ife(Accessor aa, Accessor ba){
-
-		debug("IFE " + aa + " " + ba);
 		if (aa.read() != ba.read())
 			skipInstruction = true;
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void ifn(Accessor aa, Accessor ba){
-
-		debug("IFN " + aa + " " + ba);
 		if (aa.read() == ba.read())
 			skipInstruction = true;
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void ifg(Accessor aa, Accessor ba){
-
-		debug("IFG " + aa + " " + ba);
 		if (aa.read() <= ba.read())
 			skipInstruction = true;
 		cycles+=2;
 	}
 
+	/** @deprecated step() resolves operands to ints now; kept for callers. */
+	@Deprecated
 	public void ifb(Accessor aa, Accessor ba){
-
-		debug("IFB " + aa + " " + ba);
 		if ((aa.read() & ba.read()) == 0)
 			skipInstruction = true;
 		cycles+=2;
@@ -369,7 +1354,8 @@ public class DCPU16{
 		return "Memory:\n" + m.dump(0, 10) + "...\n"
 				+ "Stack: " + Hexer.hex(r.sp().read()) + "\n" + m.dump(r.sp().read(), 9) + "\n"
 				+ "Registers:\n" + r.dump() + "\n"
-				+ "Others: \nIF: " + (skipInstruction ? "0" : "1") + " Cycles: " + cycles + " Speed: " + (speed > 0 ? "kHz: " + (speed / 1000) : "") + "\n";
+				+ "Others: \nIF: " + (skipInstruction ? "0" : "1") + (halted ? " Halted" : "") + " Cycles: " + cycles + " Speed: " + (speed > 0 ? "kHz: " + (speed / 1000) : "") + "\n"
+				+ (fault != null ? "Fault: " + fault + "\n" : "");
 	}
 
 	public Accessor accessor(int resource){
@@ -430,15 +1416,15 @@ public class DCPU16{
 		}
 		else if (isNextWordMemory(resource)){
 			cycles++;
-			return m.accessor(nextWord().read());
+			return m.accessor(m.read(nextWord()));
 		}
 		else if (isNextWord(resource)){
 			cycles++;
-			return nextWord();
+			return m.accessor(nextWord());
 		}
 		else if (isNextWordPlusRegisterMemory(resource)){
 			cycles++;
-			int next = nextWord().read();
+			int next = m.read(nextWord());
 			switch (resource){
 				case 0x10:
 					return m.accessor(r.accessor(r.A).read() + next);
@@ -470,20 +1456,21 @@ public class DCPU16{
 	}
 
 	private int popStack(){
-		int pop = r.sp().read();
-		r.sp().inc(1);
+		int pop = r.read(Registers.SP);
+		r.write(Registers.SP, pop + 1);
 		return pop;
 	}
 
 	private int pushStack(){
-		r.sp().inc(-1);
-		return r.sp().read();
+		int push = (r.read(Registers.SP) - 1) & 0xFFFF;
+		r.write(Registers.SP, push);
+		return push;
 	}
 
-	private Accessor nextWord(){
-		int next = r.pc().read();
-		r.pc().inc();
-		return m.accessor(next);
+	private int nextWord(){
+		int next = r.read(Registers.PC);
+		r.write(Registers.PC, next + 1);
+		return next;
 	}
 
 	public class StackPopAccessor implements Accessor{
@@ -571,7 +1558,7 @@ public class DCPU16{
 
 	public static void runProgram(int[] program){
 		DCPU16 d = new DCPU16();
-		d.setDebug(true);
+		d.setTracing(100);
 		d.memory().write(0, program);
 		try{
 			d.run();
@@ -579,6 +1566,7 @@ public class DCPU16{
 		catch (Exception e){
 			e.printStackTrace();
 		}
+		System.out.print(d.trace());
 		System.out.println(d.dump());
 	}
 
@@ -21,26 +21,27 @@ public class DCPUConsole
 
 	static final long serialVersionUID = 1;
 
+	private static final long REFRESH_CYCLES = 3333; // about 30 times a second at 100kHz
+
 	private Memory m;
 	private int screenStart;
 	private boolean stop;
 	private boolean running;
 	private int[] lastBytes;
-	private int keyboardStart;
-	private int keyboardPosition = 0;
+	private Keyboard keyboard;
 
-	private JTextArea screenTextArea;
+	private volatile JTextArea screenTextArea; // made on the Swing thread
 
 	public DCPUConsole(Memory memory, int screenStart, int keyboardStart){
 		this.m = memory;
 		this.screenStart = screenStart;
-		this.keyboardStart = keyboardStart;
+		this.keyboard = new Keyboard(memory, keyboardStart);
 	}
 
 	public DCPUConsole(Memory memory){
 		this.m = memory;
 		this.screenStart = 0x8000;
-		this.keyboardStart = 0x9000;
+		this.keyboard = new Keyboard(memory, 0x9000);
 	}
 
 	private void doShow(){
@@ -60,7 +61,7 @@ public class DCPUConsole
 			public void keyPressed(KeyEvent e){}
 			public void keyReleased(KeyEvent e){}
 			public void keyTyped(KeyEvent e){
-				queueKey(e.getKeyChar());
+				DCPUConsole.this.keyboard.type(e.getKeyChar());
 			}
 		};
 		addKeyListener(keyboard);
@@ -92,6 +93,7 @@ public class DCPUConsole
 
 	public void run(){
 		doShow();
+		keyboard.follow();
 		running = true;
 		synchronized(this){
 			while (true){
@@ -105,6 +107,43 @@ public class DCPUConsole
 			}
 		}
 		running = false;
+		keyboard.unfollow();
+	}
+
+	/**
+	 * Shows the console and keeps it going in the DCPU16's own time instead
+	 * of with a thread: the screen is refreshed every REFRESH_CYCLES cycles
+	 * and typed keys go into the keyboard buffer between instructions. Use
+	 * this or run(), not both. Nothing refreshes once the DCPU16 stops, so
+	 * call refresh() after run() returns to show how it ended.
+	 */
+	public void attach(DCPU16 d){
+		keyboard.setDCPU16(d);
+		doShow();
+		keyboard.follow();
+		running = true;
+		d.scheduler().schedule(d.cycles(), new Scheduler.Event(){
+			public void fire(DCPU16 d){
+				if (stop){
+					running = false;
+					keyboard.unfollow();
+					return;
+				}
+				refresh();
+				d.scheduler().schedule(d.cycles() + REFRESH_CYCLES, this);
+			}
+		});
+	}
+
+	/**
+	 * Shows the console with a thread of its own, as run() does, so that it
+	 * keeps showing a DCPU16 that's stopped or paused, but sends typed keys
+	 * to d through input(), so that a journal can have them. Keys typed while
+	 * d is paused or stopped go in once it runs again (see Keyboard).
+	 */
+	public void watch(DCPU16 d){
+		keyboard.setDCPU16(d);
+		new Thread(this).start();
 	}
 
 	public void stop(){
@@ -121,7 +160,12 @@ public class DCPUConsole
 		return true;
 	}
 
+	/**
+	 * Puts what's in VRAM on the screen, if it changed since last time, and
+	 * returns whether it did. The text area is set on the Swing thread.
+	 */
 	public boolean refresh(){
+		final JTextArea screenTextArea = this.screenTextArea;
 		if (screenTextArea == null)
 			return false;
 		int[] bytes = m.read(screenStart, 32 * 12);
@@ -139,18 +183,13 @@ public class DCPUConsole
 				screen += "\n";
 		}
 		screen += "\n";
-		screenTextArea.setText(screen);
+		final String text = screen;
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+				screenTextArea.setText(text);
+			}
+		});
 		return true;
 	}
 
-	private void queueKey(char k){
-		int location = keyboardStart + keyboardPosition;
-		if (m.read(location) != 0){
-			java.awt.Toolkit.getDefaultToolkit().beep();
-			return;
-		}
-		m.write(location, k);
-		keyboardPosition = (keyboardPosition + 1) & 0xF;
-	}
-
 }
@@ -0,0 +1,101 @@
+package dcpu16;
+
+/**
+ * Remembers how the word at each PC decodes so that step() doesn't have to
+ * pick instructions apart every time it goes around a loop.
+ *
+ * An entry packs the instruction word, the instruction's length in words and
+ * its base cycle cost (next words plus the operation itself). 0 means nothing
+ * is cached. The next words that belong to the instruction are kept alongside
+ * so that they don't have to be read from memory again either. A short
+ * literal operand's value goes in the same place.
+ *
+ * Any write to memory throws away every entry the written word could belong to.
+ */
+class DecodeCache
+	implements Memory.Listener
+{
+
+	final int[] entries = new int[0x10000];
+	final int[] aNext = new int[0x10000];
+	final int[] bNext = new int[0x10000];
+	boolean[] hooked; // entries of routines the Intrinsics run instead, never cached
+
+	public static int word(int entry){
+		return entry & 0xFFFF;
+	}
+
+	public static int length(int entry){
+		return (entry >> 16) & 0x3;
+	}
+
+	public static int cycles(int entry){
+		return (entry >> 18) & 0xF;
+	}
+
+	public static boolean hasNextWord(int resource){
+		return (resource >= 0x10 && resource <= 0x17) || resource == 0x1E || resource == 0x1F;
+	}
+
+	public static int cost(int word){
+		int instruction = word & 0xF;
+		if (instruction == 0)
+			return ((word >> 4) & 0x3F) == 0x01 ? 2 : 0;
+		switch (instruction){
+			case 0x1: case 0x9: case 0xA: case 0xB:
+				return 1;
+			case 0x5: case 0x6:
+				return 3;
+			default:
+				return 2;
+		}
+	}
+
+	/**
+	 * Decodes the instruction at pc and caches it. Returns 0 without caching
+	 * anything if the instruction runs off the end of memory, so that the caller
+	 * can fetch it the slow way and fail in the usual place, or if Intrinsics
+	 * may want to run it.
+	 */
+	public int decode(Memory m, int pc){
+		if (pc >= m.size() || (hooked != null && hooked[pc]))
+			return 0;
+		int word = m.read(pc);
+		int a, b;
+		if ((word & 0xF) == 0){
+			a = (word >> 10) & 0x3F;
+			b = 0;
+		}
+		else{
+			a = (word >> 4) & 0x3F;
+			b = (word >> 10) & 0x3F;
+		}
+		int length = 1;
+		int next = a >= 0x20 ? a - 0x20 : 0;
+		if (hasNextWord(a)){
+			int location = (pc + length++) & 0xFFFF;
+			if (location >= m.size())
+				return 0;
+			next = m.read(location);
+		}
+		aNext[pc] = next;
+		next = b >= 0x20 ? b - 0x20 : 0;
+		if (hasNextWord(b)){
+			int location = (pc + length++) & 0xFFFF;
+			if (location >= m.size())
+				return 0;
+			next = m.read(location);
+		}
+		bNext[pc] = next;
+		int entry = word | (length << 16) | ((length - 1 + cost(word)) << 18);
+		entries[pc] = entry;
+		return entry;
+	}
+
+	public void written(int location){
+		entries[location & 0xFFFF] = 0;
+		entries[(location - 1) & 0xFFFF] = 0;
+		entries[(location - 2) & 0xFFFF] = 0;
+	}
+
+}
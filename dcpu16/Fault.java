@@ -0,0 +1,56 @@
+package dcpu16;
+
+import hexer.*;
+
+/**
+ * What made a DCPU16 stop: the kind of fault, the instruction it was on and
+ * when. A DCPU16 keeps the last one instead of throwing it (unless it's been
+ * told to throw, see DCPU16.setThrowing()). A FaultCounter can count them.
+ */
+public class Fault{
+
+	/**
+	 * OK is what DCPU16.step() and status() give when nothing went wrong; no
+	 * Fault has it.
+	 */
+	public enum Kind{
+		OK, RESERVED_INSTRUCTION, READ_PAST_END, WRITE_PAST_END
+	}
+
+	public final Kind kind;
+	public final int pc; // where the instruction that faulted starts
+	public final int word; // the instruction itself
+	public final long cycle; // cycles() when it faulted
+	public final int detail; // the non-basic opcode, or the memory location
+
+	Fault(Kind kind, int pc, int word, long cycle, int detail){
+		this.kind = kind;
+		this.pc = pc;
+		this.word = word;
+		this.cycle = cycle;
+		this.detail = detail;
+	}
+
+	/**
+	 * The same message the exception used to carry.
+	 */
+	public String message(){
+		return message(kind, detail);
+	}
+
+	static String message(Kind kind, int detail){
+		switch (kind){
+			case RESERVED_INSTRUCTION:
+				return "Non-basic instruction is reserved: " + Hexer.hex(detail);
+			case READ_PAST_END:
+				return "Attempt to read past end of emulated memory " + detail + ".";
+			default:
+				return "Attempt to write past end of emulated memory " + detail + ".";
+		}
+	}
+
+	public String toString(){
+		return kind + " at " + Hexer.hex(pc) + " (" + Hexer.hex(word) + ") after " + cycle + " cycles: " + message();
+	}
+
+}
@@ -0,0 +1,40 @@
+package dcpu16;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts faults by kind for whoever is given it, so that a lot of DCPU16s
+ * can be watched without asking each one. A Fleet keeps one for all of its
+ * DCPU16s; other DCPU16s count into one only after setFaultCounter(), and
+ * any number of them, on any threads, can share it.
+ */
+public class FaultCounter{
+
+	private final LongAdder[] counts = new LongAdder[Fault.Kind.values().length];
+
+	public FaultCounter(){
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = new LongAdder();
+	}
+
+	void add(Fault.Kind kind){
+		counts[kind.ordinal()].increment();
+	}
+
+	public long count(Fault.Kind kind){
+		return counts[kind.ordinal()].sum();
+	}
+
+	public long count(){
+		long total = 0;
+		for (LongAdder count : counts)
+			total += count.sum();
+		return total;
+	}
+
+	public void reset(){
+		for (LongAdder count : counts)
+			count.reset();
+	}
+
+}
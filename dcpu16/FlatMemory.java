@@ -0,0 +1,62 @@
+package dcpu16;
+
+/**
+ * The 64K words of a standard DCPU-16 in one char[], which is what a DCPU16
+ * gets unless it's given a Memory. A word is found by the address alone,
+ * with no page to look up or create, and only one compare tells whether it's
+ * past the end. Words are 16 bits, so a mask wider than that is as good as
+ * 0xFFFF, and setMask() masks what's already there as well as what comes.
+ * Memories of other sizes, or mostly empty ones, are better left to Memory.
+ */
+public class FlatMemory
+	extends Memory
+{
+
+	public static final int SIZE = 0x10000;
+
+	private char[] words = new char[SIZE];
+	private int mask = 0xFFFF;
+
+	public FlatMemory(){
+		super(SIZE, 0);
+	}
+
+	public void setMask(int mask){
+		super.setMask(mask);
+		this.mask = mask;
+		for (int i = 0; i < SIZE; i++)
+			words[i] &= mask;
+	}
+
+	public int size(){
+		return SIZE;
+	}
+
+	public int read(int location){
+		if ((location & ~0xFFFF) != 0){
+			pastEnd(location, false);
+			return 0;
+		}
+		return words[location];
+	}
+
+	public void write(int location, int value){
+		if ((location & ~0xFFFF) != 0){
+			pastEnd(location, true);
+			return;
+		}
+		words[location] = (char)(value & mask);
+		written(location);
+	}
+
+	public void read(int start, int[] into, int offset, int length){
+		int n = Math.max(0, Math.min(length, SIZE - start));
+		for (int i = 0; i < n; i++)
+			into[offset + i] = words[start + i];
+		if (n < length){
+			pastEnd(start + n, false);
+			java.util.Arrays.fill(into, offset + n, offset + length, 0);
+		}
+	}
+
+}
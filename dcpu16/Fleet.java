@@ -0,0 +1,566 @@
+package dcpu16;
+
+/**
+ * Thousands of DCPU16s kept in flat arrays rather than as objects: every
+ * one's registers side by side in one int[], and every one's memory in one
+ * char[], a full 0x10000 words each. runFor() takes them round-robin, each
+ * running for a turn of QUANTUM cycles, so that the registers of the next one
+ * to go are always close at hand.
+ *
+ * They run the way DCPU16.step() does, down to the cycle counts and faults.
+ * A fault stops the one that had it and the rest carry on. One that has
+ * halted on a jump to itself is passed over, as DCPU16.runFor() would.
+ *
+ * view() gives out a DCPU16 for any one of them, to work with in the Harness
+ * or anything else that wants a DCPU16.
+ */
+public class Fleet{
+
+	private static final int WORDS = 0x10000; // memory for each DCPU16
+	private static final int REGISTERS = 11;
+	private static final long QUANTUM = 1000; // cycles in a turn
+	private static final int PC = Registers.PC;
+	private static final int SP = Registers.SP;
+	private static final int O = Registers.O;
+
+	private int size;
+	private int[] r; // r[n * REGISTERS + register]
+	private char[] words; // words[n * WORDS + location]
+	private long[] cycles;
+	private boolean[] skip;
+	private Fault[] faults;
+	private DCPU16[] views;
+	private Memory[] memories; // made when they're asked for
+	private FaultCounter faultCounter = new FaultCounter();
+
+	// the one whose turn it is
+	private int base; // where its memory starts in words
+	private int reg; // where its registers start in r
+	private int current;
+	private long clock;
+	private boolean skipping;
+	private int instructionStart;
+
+	public Fleet(int size){
+		if (size < 1 || size > Integer.MAX_VALUE / WORDS)
+			throw new IllegalArgumentException("A Fleet can hold from 1 to " + (Integer.MAX_VALUE / WORDS) + " DCPU16s");
+		this.size = size;
+		r = new int[size * REGISTERS];
+		words = new char[size * WORDS];
+		cycles = new long[size];
+		skip = new boolean[size];
+		faults = new Fault[size];
+		views = new DCPU16[size];
+		memories = new Memory[size];
+	}
+
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Writes the same words into every DCPU16's memory.
+	 */
+	public synchronized void load(int location, int[] values){
+		for (int n = 0; n < size; n++)
+			for (int i = 0; i < values.length; i++)
+				words[n * WORDS + ((location + i) & 0xFFFF)] = (char)values[i];
+	}
+
+	/**
+	 * The n'th DCPU16's memory. It's the fleet's own, so it can be read and
+	 * written (by a DCPUConsole, say) while the fleet runs. Only writes made
+	 * through it are told to its listeners.
+	 */
+	public synchronized Memory memory(int n){
+		if (memories[n] == null)
+			memories[n] = new LaneMemory(n);
+		return memories[n];
+	}
+
+	public synchronized int readRegister(int n, int register){
+		return views[n] != null ? views[n].registers().read(register) : r[n * REGISTERS + register];
+	}
+
+	public synchronized void writeRegister(int n, int register, int value){
+		if (views[n] != null)
+			views[n].registers().write(register, value);
+		else
+			r[n * REGISTERS + register] = value & 0xFFFF;
+	}
+
+	public synchronized long cycles(int n){
+		return views[n] != null ? views[n].cycles() : cycles[n];
+	}
+
+	/**
+	 * The fault that stopped the n'th DCPU16, or null if it's still going.
+	 */
+	public synchronized Fault fault(int n){
+		return views[n] != null ? views[n].fault() : faults[n];
+	}
+
+	/**
+	 * The kind of fault(n) there was, or Fault.Kind.OK.
+	 */
+	public synchronized Fault.Kind status(int n){
+		Fault fault = fault(n);
+		return fault == null ? Fault.Kind.OK : fault.kind;
+	}
+
+	/**
+	 * Counts the faults of every DCPU16 in the fleet, views included.
+	 */
+	public FaultCounter faultCounter(){
+		return faultCounter;
+	}
+
+	/**
+	 * A DCPU16 standing in for the n'th one. It works on the fleet's memory
+	 * but has its own copy of the registers, so the fleet leaves the n'th one
+	 * alone until release(n) takes them back. Asking again before then gives
+	 * the same DCPU16.
+	 */
+	public synchronized DCPU16 view(int n){
+		if (views[n] == null){
+			DCPU16 d = new DCPU16(memory(n));
+			System.arraycopy(r, n * REGISTERS, d.registers().values(), 0, REGISTERS);
+			d.cycles = cycles[n];
+			d.skipInstruction = skip[n];
+			d.setFaultCounter(faultCounter);
+			views[n] = d;
+		}
+		return views[n];
+	}
+
+	/**
+	 * Stops the n'th DCPU16's view and puts it back in the fleet as it left
+	 * it. The view shouldn't be used after this.
+	 */
+	public synchronized void release(int n){
+		DCPU16 d = views[n];
+		if (d == null)
+			return;
+		d.stop();
+		System.arraycopy(d.registers().values(), 0, r, n * REGISTERS, REGISTERS);
+		if (d.cycles != cycles[n]) // it ran, so its fault (or lack of one) is the latest
+			faults[n] = d.fault();
+		cycles[n] = d.cycles;
+		skip[n] = d.skipInstruction;
+		views[n] = null;
+		memories[n] = null; // let go of the view's listeners
+	}
+
+	/**
+	 * Runs every DCPU16 that hasn't faulted, halted or been given out with
+	 * view() for at least the given number of cycles, and returns how many they
+	 * ran between them.
+	 */
+	public synchronized long runFor(long budget){
+		long[] ends = new long[size];
+		for (int n = 0; n < size; n++)
+			ends[n] = cycles[n] + budget;
+		long total = 0;
+		boolean more = true;
+		while (more){
+			more = false;
+			for (int n = 0; n < size; n++){
+				if (cycles[n] >= ends[n] || faults[n] != null || views[n] != null)
+					continue;
+				if (atSelfJump(n)){
+					ends[n] = cycles[n]; // halted, so it's passed over
+					continue;
+				}
+				total += turn(n, Math.min(ends[n], cycles[n] + QUANTUM));
+				more |= cycles[n] < ends[n] && faults[n] == null;
+			}
+		}
+		return total;
+	}
+
+	/*
+	 * Runs the n'th DCPU16 until it reaches end cycles or faults.
+	 */
+	private long turn(int n, long end){
+		current = n;
+		base = n * WORDS;
+		reg = n * REGISTERS;
+		clock = cycles[n];
+		skipping = skip[n];
+		long start = clock;
+		try {
+			while (clock < end && faults[n] == null)
+				step();
+		} finally {
+			cycles[n] = clock;
+			skip[n] = skipping;
+		}
+		return clock - start;
+	}
+
+	/*
+	 * The same test DCPU16.runFor() makes: a SET, ADD or SUB of PC with a
+	 * literal that leaves PC where it is, with no skip pending.
+	 */
+	private boolean atSelfJump(int n){
+		if (skip[n])
+			return false;
+		int base = n * WORDS;
+		int pc = r[n * REGISTERS + PC];
+		int word = words[base + pc];
+		int instruction = word & 0xF;
+		if (((word >> 4) & 0x3F) != 0x1C || instruction < 0x1 || instruction > 0x3)
+			return false;
+		int b = (word >> 10) & 0x3F;
+		int v;
+		int length = 1;
+		if (b >= 0x20)
+			v = b - 0x20;
+		else if (b == 0x1F && pc < 0xFFFF){
+			v = words[base + pc + 1];
+			length = 2;
+		}
+		else
+			return false;
+		if (instruction == 0x2)
+			v = pc + length + v;
+		else if (instruction == 0x3)
+			v = pc + length - v;
+		if (instruction != 0x1 && ((v >> 16) & 0xFFFF) != r[n * REGISTERS + O])
+			return false;
+		return (v & 0xFFFF) == pc;
+	}
+
+	private void step(){
+		int pc = r[reg + PC];
+		instructionStart = pc;
+		int word = words[base + pc];
+		r[reg + PC] = (pc + 1) & 0xFFFF;
+		int instruction = word & 0xF;
+		int a = (word >> 4) & 0x3F;
+		int b = (word >> 10) & 0x3F;
+		long prior = clock;
+		if (instruction == 0){
+			int ao = operand(b);
+			if (skipping){
+				skip(prior);
+				return;
+			}
+			if (a == 0x01)
+				jsr(ao);
+			else
+				fault(Fault.Kind.RESERVED_INSTRUCTION, a);
+			return;
+		}
+		int ao = operand(a);
+		int bo = operand(b);
+		if (skipping){ // after the operands, in case one eats the next word
+			skip(prior);
+			return;
+		}
+		switch (instruction){
+			case 0x1:
+				set(ao, bo); break;
+			case 0x2:
+				add(ao, bo); break;
+			case 0x3:
+				sub(ao, bo); break;
+			case 0x4:
+				mul(ao, bo); break;
+			case 0x5:
+				div(ao, bo); break;
+			case 0x6:
+				mod(ao, bo); break;
+			case 0x7:
+				shl(ao, bo); break;
+			case 0x8:
+				shr(ao, bo); break;
+			case 0x9:
+				band(ao, bo); break;
+			case 0xA:
+				bor(ao, bo); break;
+			case 0xB:
+				bxor(ao, bo); break;
+			case 0xC:
+				if (read(resolve(ao)) != read(resolve(bo)))
+					skipping = true;
+				clock += 2;
+				break;
+			case 0xD:
+				if (read(resolve(ao)) == read(resolve(bo)))
+					skipping = true;
+				clock += 2;
+				break;
+			case 0xE:
+				if (read(resolve(ao)) <= read(resolve(bo)))
+					skipping = true;
+				clock += 2;
+				break;
+			default:
+				if ((read(resolve(ao)) & read(resolve(bo))) == 0)
+					skipping = true;
+				clock += 2;
+		}
+	}
+
+	private void skip(long prior){
+		skipping = false;
+		clock = prior + 1;
+	}
+
+	private void fault(Fault.Kind kind, int detail){
+		if (faults[current] == null){
+			faults[current] = new Fault(kind, instructionStart, words[base + instructionStart], clock, detail);
+			faultCounter.add(kind);
+		}
+	}
+
+	/*
+	 * Operands are tagged the same way as in DCPU16.
+	 */
+	private static final int REGISTER = 0x100000;
+	private static final int LITERAL = 0x200000;
+	private static final int POP = 0x300000;
+	private static final int PUSH = 0x400000;
+
+	private int operand(int resource){
+		int next = 0;
+		int location = 0;
+		if (DecodeCache.hasNextWord(resource)){
+			clock++;
+			location = r[reg + PC];
+			r[reg + PC] = (location + 1) & 0xFFFF;
+			next = words[base + location];
+		}
+		switch (resource){
+			case 0x00: case 0x01: case 0x02: case 0x03: case 0x04: case 0x05: case 0x06: case 0x07:
+				return REGISTER | resource;
+			case 0x08: case 0x09: case 0x0A: case 0x0B: case 0x0C: case 0x0D: case 0x0E: case 0x0F:
+				return r[reg + (resource & 0x7)];
+			case 0x10: case 0x11: case 0x12: case 0x13: case 0x14: case 0x15: case 0x16: case 0x17:
+				return r[reg + (resource & 0x7)] + next;
+			case 0x18:
+				return POP;
+			case 0x19:
+				return r[reg + SP];
+			case 0x1A:
+				return PUSH;
+			case 0x1B:
+				return REGISTER | SP;
+			case 0x1C:
+				return REGISTER | PC;
+			case 0x1D:
+				return REGISTER | O;
+			case 0x1E:
+				return next;
+			case 0x1F:
+				return location;
+			default:
+				return LITERAL | (resource & 0x1F);
+		}
+	}
+
+	private int resolve(int operand){
+		if (operand == POP){
+			int pop = r[reg + SP];
+			r[reg + SP] = (pop + 1) & 0xFFFF;
+			return pop;
+		}
+		if (operand == PUSH)
+			return push();
+		return operand;
+	}
+
+	private int push(){
+		int push = (r[reg + SP] - 1) & 0xFFFF;
+		r[reg + SP] = push;
+		return push;
+	}
+
+	private int read(int operand){
+		if (operand < REGISTER){
+			if (operand >= WORDS){
+				fault(Fault.Kind.READ_PAST_END, operand);
+				return 0;
+			}
+			return words[base + operand];
+		}
+		if (operand < LITERAL)
+			return r[reg + (operand & 0xF)];
+		return operand & 0x1F;
+	}
+
+	private void write(int operand, int value){
+		if (operand < REGISTER){
+			if (operand >= WORDS)
+				fault(Fault.Kind.WRITE_PAST_END, operand);
+			else
+				words[base + operand] = (char)value;
+		}
+		else if (operand < LITERAL)
+			r[reg + (operand & 0xF)] = value & 0xFFFF;
+		// literals ignore writes as per spec
+	}
+
+	private void set(int ao, int bo){
+		int v = read(resolve(bo));
+		write(resolve(ao), v);
+		clock++;
+	}
+
+	private void add(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		bo = resolve(bo);
+		int vb = read(bo);
+		if (ao >= REGISTER) // resolving b may have moved SP
+			va = read(ao);
+		int v = va + vb;
+		write(ao, v & 0xFFFF);
+		r[reg + O] = (v >> 16) & 0xFFFF;
+		clock += 2;
+	}
+
+	private void sub(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		bo = resolve(bo);
+		int vb = read(bo);
+		if (ao >= REGISTER)
+			va = read(ao);
+		int v = va - vb;
+		write(ao, v & 0xFFFF);
+		r[reg + O] = (v >> 16) & 0xFFFF;
+		clock += 2;
+	}
+
+	private void jsr(int ao){
+		int pc = r[reg + PC];
+		write(push(), pc);
+		r[reg + PC] = read(resolve(ao)) & 0xFFFF;
+		clock += 2;
+	}
+
+	private void mul(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int v = va * read(resolve(bo));
+		r[reg + O] = (v >> 16) & 0xFFFF;
+		write(ao, v & 0xFFFF);
+		clock += 2;
+	}
+
+	private void div(int ao, int bo){
+		int vb = read(resolve(bo));
+		if (vb == 0){
+			write(resolve(ao), 0);
+			r[reg + O] = 0;
+			return;
+		}
+		ao = resolve(ao);
+		int va = read(ao);
+		r[reg + O] = ((va << 16) / vb) & 0xFFFF;
+		write(ao, (va / vb) & 0xFFFF);
+		clock += 3;
+	}
+
+	private void mod(int ao, int bo){
+		int vb = read(resolve(bo));
+		if (vb == 0){
+			write(resolve(ao), 0);
+			return;
+		}
+		ao = resolve(ao);
+		write(ao, read(ao) % vb);
+		clock += 3;
+	}
+
+	private void shl(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int v = va << read(resolve(bo));
+		r[reg + O] = (v >> 16) & 0xFFFF;
+		write(ao, v & 0xFFFF);
+		clock += 2;
+	}
+
+	private void shr(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		int vb = read(resolve(bo));
+		if (ao >= REGISTER)
+			va = read(ao);
+		r[reg + O] = ((va << 16) >> vb) & 0xFFFF;
+		write(ao, (va >> vb) & 0xFFFF);
+		clock += 2;
+	}
+
+	private void band(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va & read(resolve(bo)));
+		clock++;
+	}
+
+	private void bor(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va | read(resolve(bo)));
+		clock++;
+	}
+
+	private void bxor(int ao, int bo){
+		ao = resolve(ao);
+		int va = read(ao);
+		write(ao, va ^ read(resolve(bo)));
+		clock++;
+	}
+
+	/*
+	 * One DCPU16's slice of the fleet's memory, as a Memory.
+	 */
+	private class LaneMemory
+		extends Memory
+	{
+
+		private int start;
+
+		LaneMemory(int n){
+			super(WORDS, 0);
+			start = n * WORDS;
+		}
+
+		public int size(){
+			return WORDS;
+		}
+
+		public int read(int location){
+			if (location < 0 || location >= WORDS){
+				pastEnd(location, false);
+				return 0;
+			}
+			return words[start + location];
+		}
+
+		public void write(int location, int value){
+			if (location < 0 || location >= WORDS){
+				pastEnd(location, true);
+				return;
+			}
+			words[start + location] = (char)value;
+			written(location);
+		}
+
+		public void read(int location, int[] into, int offset, int length){
+			int n = Math.max(0, Math.min(length, WORDS - location));
+			for (int i = 0; i < n; i++)
+				into[offset + i] = words[start + location + i];
+			if (n < length){
+				pastEnd(location + n, false);
+				java.util.Arrays.fill(into, offset + n, offset + length, 0);
+			}
+		}
+
+	}
+
+}
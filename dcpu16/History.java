@@ -0,0 +1,290 @@
+package dcpu16;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A bounded log of checkpoints of a DCPU16, for going backwards from where a
+ * program went wrong. A checkpoint is taken every so many cycles, from the
+ * Scheduler, and holds the context (see DCPU16.saveContext()) and only the
+ * pages of memory that changed since the one before. The oldest is folded
+ * into a full copy of memory when there are too many. Changed pages are found
+ * by comparing memory with a copy of it as of the last checkpoint, rather
+ * than by being told about writes, which would cost every write something.
+ * Memory is read in one go and compared a page at a time. Checkpointing
+ * every INTERVAL cycles, the default, keeps the cost under 20% even for a
+ * program that writes all over memory on the Recompiler (see Benchmark
+ * -history). Much more often than that, such a program can lose a third of
+ * its speed or more.
+ *
+ * reverseStep() and reverseContinue() restore the nearest checkpoint before
+ * where they want to be and step() forward from it to there, so they land
+ * exactly where the program was only if everything that happened since came
+ * from the DCPU16 itself. Writes from outside and device events aren't
+ * replayed, and events that were scheduled stay where they were. Checkpoints
+ * after where they land are dropped, since what comes next may not be the
+ * same again. Only while the DCPU16 is paused or not running.
+ */
+public class History
+	implements Scheduler.Event
+{
+
+	public static final long INTERVAL = 1000000; // cycles between checkpoints, by default
+	public static final int CHECKPOINTS = 100; // kept by default
+
+	private static final int PAGE_BITS = 8;
+	private static final int PAGE = 1 << PAGE_BITS;
+
+	private DCPU16 cpu;
+	private Memory m;
+	private long interval;
+	private int capacity;
+	private int pageCount;
+	private int[] base; // memory as of the oldest checkpoint
+	private ArrayList<Checkpoint> log = new ArrayList<Checkpoint>();
+	private int[] last; // memory as of the newest checkpoint
+	private int[] now; // memory as it is, read all at once to compare with last
+	private long spent = 0; // nanoseconds, in checkpoint()
+
+	private static class Checkpoint{
+
+		long cycle;
+		long[] context = new long[DCPU16.CONTEXT_LONGS];
+		int[] pages; // the pages that changed since the checkpoint before
+		int[] words; // and what was in them, a page after another
+
+	}
+
+	History(DCPU16 cpu, long interval, int capacity){
+		this.cpu = cpu;
+		this.m = cpu.memory();
+		this.interval = interval;
+		this.capacity = Math.max(1, capacity);
+		pageCount = (m.size() + PAGE - 1) >> PAGE_BITS;
+		base = new int[pageCount << PAGE_BITS];
+		m.read(0, base, 0, m.size());
+		last = base.clone();
+		now = base.clone();
+		Checkpoint first = new Checkpoint();
+		first.cycle = cpu.cycles;
+		cpu.saveContext(first.context, 0);
+		first.pages = new int[0];
+		first.words = new int[0];
+		log.add(first);
+		cpu.scheduler().schedule(cpu.cycles + interval, this);
+	}
+
+	void stop(){
+		cpu.scheduler().cancel(this);
+	}
+
+	public void fire(DCPU16 d){
+		checkpoint();
+		d.scheduler().schedule(d.cycles + interval, this);
+	}
+
+	/**
+	 * Checkpoints kept, the oldest included.
+	 */
+	public int size(){
+		return log.size();
+	}
+
+	/**
+	 * How long taking checkpoints has taken so far, in nanoseconds.
+	 */
+	public long spent(){
+		return spent;
+	}
+
+	/**
+	 * The cycle count of the oldest checkpoint, as far back as this can go.
+	 */
+	public long oldest(){
+		return log.get(0).cycle;
+	}
+
+	private void checkpoint(){
+		long start = System.nanoTime();
+		Checkpoint c = new Checkpoint();
+		c.cycle = cpu.cycles;
+		cpu.saveContext(c.context, 0);
+		boolean[] changed = changed();
+		int count = 0;
+		for (int p = 0; p < pageCount; p++)
+			if (changed[p])
+				count++;
+		c.pages = new int[count];
+		c.words = new int[count << PAGE_BITS];
+		int n = 0;
+		for (int p = 0; p < pageCount; p++)
+			if (changed[p]){
+				c.pages[n] = p;
+				System.arraycopy(last, p << PAGE_BITS, c.words, n << PAGE_BITS, PAGE);
+				n++;
+			}
+		log.add(c);
+		if (log.size() > capacity){
+			Checkpoint next = log.get(1);
+			for (int i = 0; i < next.pages.length; i++)
+				System.arraycopy(next.words, i << PAGE_BITS, base, next.pages[i] << PAGE_BITS, PAGE);
+			next.pages = new int[0];
+			next.words = new int[0];
+			log.remove(0);
+		}
+		spent += System.nanoTime() - start;
+	}
+
+	/**
+	 * Goes back to just before the last instruction. Returns false if that's
+	 * before the oldest checkpoint.
+	 */
+	public boolean reverseStep(){
+		long now = cpu.cycles;
+		int k = before(now);
+		if (k < 0)
+			return false;
+		restore(k);
+		long target = cpu.cycles;
+		while (cpu.cycles < now){
+			target = cpu.cycles;
+			cpu.step();
+			if (cpu.fault() != null)
+				break;
+		}
+		land(k, target);
+		if (! cpu.skipInstruction)
+			cpu.breakpoints().passing(cpu.registers().read(Registers.PC));
+		return true;
+	}
+
+	/**
+	 * Goes back to the last breakpoint or watchpoint that was hit (see
+	 * Breakpoints) and returns it, or to the oldest checkpoint if there's no
+	 * such place, returning null.
+	 */
+	public Breakpoints.Hit reverseContinue(){
+		long now = cpu.cycles;
+		int k = before(now);
+		if (k < 0)
+			return null;
+		Breakpoints b = cpu.breakpoints();
+		for (long end = now; k >= 0; end = log.get(k--).cycle){
+			Breakpoints.Hit hit = null;
+			long target = -1;
+			if (b.isArmed()){
+				restore(k);
+				while (cpu.cycles < end){
+					int pc = cpu.registers().read(Registers.PC);
+					boolean skipping = cpu.skipInstruction;
+					long cycle = cpu.cycles;
+					if (! skipping && b.isSet(Breakpoints.Kind.EXEC, pc)){
+						target = cycle;
+						hit = new Breakpoints.Hit(Breakpoints.Kind.EXEC, pc, pc, cycle);
+					}
+					if (! skipping)
+						b.watch(cpu.registers().values(), m, pc);
+					cpu.step();
+					if (! skipping && cpu.cycles < now && b.touched(pc, cpu.cycles)){
+						target = cpu.cycles;
+						hit = b.hit();
+					}
+					if (cpu.fault() != null)
+						break;
+				}
+			}
+			if (hit != null){
+				land(k, target);
+				b.stoppedAt(hit);
+				return hit;
+			}
+		}
+		land(0, log.get(0).cycle);
+		return null;
+	}
+
+	/*
+	 * The newest checkpoint from before cycle, or -1.
+	 */
+	private int before(long cycle){
+		for (int k = log.size() - 1; k >= 0; k--)
+			if (log.get(k).cycle < cycle)
+				return k;
+		return -1;
+	}
+
+	/*
+	 * Restores checkpoint k, steps to target and forgets the checkpoints
+	 * after k.
+	 */
+	private void land(int k, long target){
+		restore(k);
+		while (cpu.cycles < target){
+			cpu.step();
+			if (cpu.fault() != null)
+				break;
+		}
+		while (log.size() > k + 1)
+			log.remove(log.size() - 1);
+		cpu.scheduler().cancel(this);
+		cpu.scheduler().schedule(Math.max(cpu.cycles, log.get(k).cycle + interval), this);
+	}
+
+	/*
+	 * Which pages are different from last, which is brought up to date by
+	 * trading places with now rather than by copying.
+	 */
+	private boolean[] changed(){
+		m.read(0, now, 0, m.size());
+		boolean[] changed = new boolean[pageCount];
+		for (int p = 0; p < pageCount; p++){
+			int at = p << PAGE_BITS;
+			changed[p] = Arrays.mismatch(now, at, at + PAGE, last, at, at + PAGE) >= 0;
+		}
+		int[] t = last;
+		last = now;
+		now = t;
+		return changed;
+	}
+
+	/*
+	 * Words in page p, which is short if it's the last and memory is.
+	 */
+	private int length(int p){
+		return Math.min(PAGE, m.size() - (p << PAGE_BITS));
+	}
+
+	/*
+	 * Puts back memory and the context as they were at checkpoint k. Only
+	 * pages that changed since can be different, and only words that are get
+	 * written, so that as little as possible is thrown out of the caches.
+	 */
+	private void restore(int k){
+		int[] from = new int[pageCount]; // where each page was last saved by k: 0 for base, or checkpoint and index
+		int[] index = new int[pageCount];
+		for (int j = 1; j <= k; j++){
+			Checkpoint c = log.get(j);
+			for (int i = 0; i < c.pages.length; i++){
+				from[c.pages[i]] = j;
+				index[c.pages[i]] = i;
+			}
+		}
+		boolean[] changed = changed();
+		for (int j = k + 1; j < log.size(); j++)
+			for (int p : log.get(j).pages)
+				changed[p] = true;
+		for (int p = 0; p < pageCount; p++){
+			if (! changed[p])
+				continue;
+			int[] words = from[p] == 0 ? base : log.get(from[p]).words;
+			int offset = from[p] == 0 ? p << PAGE_BITS : index[p] << PAGE_BITS;
+			int at = p << PAGE_BITS;
+			for (int i = 0; i < length(p); i++)
+				if (last[at + i] != words[offset + i])
+					m.write(at + i, words[offset + i]);
+			System.arraycopy(words, offset, last, at, PAGE);
+		}
+		cpu.restoreContext(log.get(k).context, 0);
+	}
+
+}
@@ -0,0 +1,157 @@
+package dcpu16;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spots a DCPU16 that's busy-waiting, like a loop polling the keyboard buffer
+ * for a key, so that it can stop burning a host core.
+ *
+ * probe() steps the DCPU16 through a few instructions. If PC comes back to
+ * where it started with every register (and any pending skip) the same as
+ * the last time round, and nothing has written to memory, then the loop
+ * can't do anything new until something outside writes to one of the words
+ * it reads. Every lap from then on takes the same number of cycles and ends
+ * in the same state, so laps can be skipped whole without the cycle count
+ * going out of step with the code.
+ */
+class IdleDetector
+	implements Memory.Listener
+{
+
+	private static final int MAX_INSTRUCTIONS = 32;
+	private static final int MAX_BACKOFF = 64;
+
+	private DCPU16 cpu;
+	private int[] r;
+	private Memory m;
+	private int[] watched = new int[MAX_INSTRUCTIONS * 5]; // the loop's code and the words it reads
+	private int watchedCount = 0;
+	private volatile boolean written = false;
+	private volatile Thread parked;
+	private long period = 0; // cycles in one lap of the loop we're idling in, or 0 if we're not
+	private int skips = 0; // probes to turn down before trying again
+	private int backoff = 1;
+
+	public IdleDetector(DCPU16 cpu){
+		this.cpu = cpu;
+		this.r = cpu.registers().values();
+		this.m = cpu.memory();
+	}
+
+	/**
+	 * Runs up to MAX_INSTRUCTIONS instructions looking for an idle loop, and
+	 * stops at the start of a lap if it finds one. Returns the cycles in a lap,
+	 * or 0 if the DCPU16 isn't idling. It doesn't start an instruction at or
+	 * after until, so that events still fire where they would without it.
+	 *
+	 * Probing gets in the way of the faster engines, so it's only done when
+	 * nothing has been written since the last probe, and less and less often
+	 * (down to every MAX_BACKOFF calls) while it keeps finding nothing.
+	 */
+	public long probe(long until){
+		if (period == 0 && (written || skips > 0)){
+			if (skips > 0)
+				skips--;
+			written = false;
+			return 0;
+		}
+		if (! lookForLoop(until)){
+			if (cpu.cycles >= until) // it didn't get the chance to look
+				return 0;
+			skips = backoff;
+			backoff = Math.min(backoff * 2, MAX_BACKOFF);
+			return 0;
+		}
+		backoff = 1;
+		return period;
+	}
+
+	private boolean lookForLoop(long until){
+		written = false;
+		watchedCount = 0;
+		period = 0;
+		int start = r[Registers.PC];
+		int[] lap = r.clone();
+		boolean lapSkip = cpu.skipInstruction;
+		long lapCycles = cpu.cycles;
+		for (int i = 0; i < MAX_INSTRUCTIONS && cpu.cycles < until; i++){
+			watchInstruction(r[Registers.PC]);
+			cpu.step();
+			if (written || cpu.fault() != null)
+				return false;
+			if (r[Registers.PC] != start)
+				continue;
+			if (cpu.skipInstruction == lapSkip && java.util.Arrays.equals(r, lap)){
+				period = cpu.cycles - lapCycles;
+				return true;
+			}
+			lap = r.clone(); // it may take a lap to settle, like reading a key into A
+			lapSkip = cpu.skipInstruction;
+			lapCycles = cpu.cycles;
+			watchedCount = 0;
+		}
+		return false;
+	}
+
+	public long period(){
+		return written ? 0 : period;
+	}
+
+	/**
+	 * Parks the calling thread until one of the words the idle loop reads is
+	 * written, the DCPU16 is stopped or maxNanos goes by.
+	 */
+	public void park(long maxNanos){
+		parked = Thread.currentThread();
+		if (! written && period > 0)
+			LockSupport.parkNanos(this, maxNanos);
+		parked = null;
+	}
+
+	public void written(int location){
+		written = true;
+		Thread parked = this.parked;
+		if (parked == null)
+			return;
+		for (int i = 0; i < watchedCount; i++)
+			if (watched[i] == location){
+				LockSupport.unpark(parked);
+				return;
+			}
+	}
+
+	/*
+	 * Notes down every word the instruction at pc will read, given the
+	 * registers as they are.
+	 */
+	private void watchInstruction(int pc){
+		int word = m.read(pc);
+		int length = Recompiler.length(word);
+		for (int i = 0; i < length; i++)
+			watch(pc + i);
+		if ((word & 0xF) == 0)
+			operand((word >> 10) & 0x3F, pc + 1);
+		else{
+			int a = (word >> 4) & 0x3F;
+			operand(a, pc + 1);
+			operand((word >> 10) & 0x3F, DecodeCache.hasNextWord(a) ? pc + 2 : pc + 1);
+		}
+	}
+
+	private void operand(int resource, int next){
+		if (resource >= 0x08 && resource <= 0x0F)
+			watch(r[resource & 0x7]);
+		else if (resource >= 0x10 && resource <= 0x17)
+			watch(r[resource & 0x7] + m.read(next & 0xFFFF));
+		else if (resource == 0x18 || resource == 0x19)
+			watch(r[Registers.SP]);
+		else if (resource == 0x1E)
+			watch(m.read(next & 0xFFFF));
+	}
+
+	private void watch(int location){
+		if (watchedCount < watched.length)
+			watched[watchedCount++] = location & 0xFFFF;
+	}
+
+}
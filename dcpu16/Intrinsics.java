@@ -0,0 +1,1290 @@
+package dcpu16;
+
+import java.util.Map;
+
+import hexer.*;
+
+/**
+ * Java stand-ins for library routines: lib/factorial.asm, the sdiv, abs and
+ * neg of lib/signedint.asm, lib/sqrt32.asm (which sqrt16 jumps into) and
+ * everything in lib/trig.asm, except for asin and acos out of range.
+ * When a DCPU16 reaches the entry of one that's been bound, step() runs it in
+ * Java from there through its last SET PC, POP, and leaves the registers, O,
+ * the stack and the cycle count just as the guest code would have. The other
+ * engines go to step() for a bound entry.
+ *
+ * A routine is bound at the address of its label (see Assembler.labels()) or
+ * wherever scan() finds its code, and only if the code there fingerprints the
+ * same as the library's, wherever it was assembled. What each instruction
+ * costs comes from the code itself, since a label can end up a short literal
+ * or a next word. Writing over any word of a bound routine unbinds it, so
+ * bind after the program is loaded. A routine that calls another (sin calls
+ * normalize_angle, say) only runs in Java while that one is bound where it's
+ * called too.
+ *
+ * With verifying on, every call runs the guest code too, one step() at a
+ * time, and everything it left (all of memory included) is compared with
+ * what the Java left. Mismatches are counted and the guest's result is kept.
+ *
+ * A routine runs all at once, so events that come due in the middle of it
+ * fire after it returns. Nothing is run in Java while tracing or while any
+ * breakpoints are set, or for memories smaller than 64K words, or in
+ * cycle-exact mode (see DCPU16.setCycleExact()) while any event is
+ * scheduled.
+ */
+public class Intrinsics
+	implements Memory.Listener
+{
+
+	private static final Routine[] ROUTINES = {new Factorial(), new SignedDivide(), new Abs(), new Neg(), new Sqrt32(),
+		new NormalizeAngle(), new ReflectAngle(), new Sin(), new Cos(), new Asin(), new Acos(), new Tan(),
+		new AngleUnits("RADIANS_TO_DEGREES", 13, 82481301, 180, 314), new AngleUnits("DEGREES_TO_RADIANS", 14, 293716882, 314, 180)};
+	private static final int MAX_SPAN = 0x100; // more words than any routine's
+	private static final int MAX_STEPS = 10000000; // instructions a verified call's guest code gets to return in
+	private static final int SKIP = 1; // what an instruction costs when an IFx skips it
+
+	private DCPU16 cpu;
+	private int[] r;
+	private Memory m;
+	private Site[] sites = new Site[0x10000];
+	final boolean[] entries = new boolean[0x10000]; // shared with the DecodeCache, which won't cache them
+	private boolean[] covered = new boolean[0x10000];
+	private boolean verifying = false;
+	private boolean checking = false; // running a verified call's guest code
+	private long calls = 0;
+	private long mismatches = 0;
+	private String lastMismatch;
+
+	/*
+	 * A routine bound at entry, with where each of its instructions is and
+	 * what it costs when it isn't skipped.
+	 */
+	static class Site{
+
+		Routine routine;
+		int entry;
+		int length; // in words
+		int[] at;
+		int[] cost;
+		int[] o; // what O is left as by each jump the assembler made an ADD or SUB of PC, otherwise -1
+		int[] target; // where each jump (JSR included) to a literal goes, otherwise -1
+		Site[] sites; // everything bound, for callee()
+
+		int jump(int k, int o){
+			return this.o[k] < 0 ? o : this.o[k];
+		}
+
+		/*
+		 * The site instruction k jumps to, if the routine with the given label
+		 * is bound there and would run, otherwise null.
+		 */
+		Site callee(int k, String label){
+			Site site = target[k] < 0 ? null : sites[target[k]];
+			return site != null && site.routine.label.equals(label) && site.routine.ready(site) ? site : null;
+		}
+
+	}
+
+	Intrinsics(DCPU16 cpu){
+		this.cpu = cpu;
+		this.r = cpu.registers().values();
+		this.m = cpu.memory();
+		cpu.decoded.hooked = entries;
+		m.addListener(this);
+	}
+
+	/**
+	 * Binds each routine that has its label in labels (as they come from
+	 * Assembler.labels()), if the code at its address is the routine's.
+	 * Returns how many were bound.
+	 */
+	public int bind(Map<String, Integer> labels){
+		int count = 0;
+		for (Routine routine : ROUTINES){
+			Integer entry = labels.get(routine.label);
+			if (entry != null && bind(routine, entry))
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Looks through all of memory for the routines' code and binds every copy
+	 * of it. Returns how many were bound.
+	 */
+	public int scan(){
+		int count = 0;
+		for (int entry = 0; entry < 0x10000; entry++)
+			for (Routine routine : ROUTINES)
+				if (bind(routine, entry)){
+					count++;
+					break;
+				}
+		return count;
+	}
+
+	public void unbindAll(){
+		for (int entry = 0; entry < 0x10000; entry++)
+			if (sites[entry] != null)
+				unbind(entry);
+	}
+
+	/**
+	 * The label of the routine bound at entry, or null.
+	 */
+	public String boundAt(int entry){
+		Site site = sites[entry & 0xFFFF];
+		return site == null ? null : site.routine.label;
+	}
+
+	/**
+	 * Runs the guest code alongside every call and compares (see above).
+	 */
+	public void setVerifying(boolean on){
+		verifying = on;
+	}
+
+	public boolean isVerifying(){
+		return verifying;
+	}
+
+	/**
+	 * How many calls have been run in Java.
+	 */
+	public long calls(){
+		return calls;
+	}
+
+	/**
+	 * How many verified calls didn't come out the same as the guest code.
+	 */
+	public long mismatches(){
+		return mismatches;
+	}
+
+	/**
+	 * What went wrong with the last mismatch, or null if there hasn't been one.
+	 */
+	public String lastMismatch(){
+		return lastMismatch;
+	}
+
+	private boolean bind(Routine routine, int entry){
+		if (m.size() < 0x10000 || sites[entry] != null)
+			return false;
+		int[] at = new int[routine.count];
+		int[] cost = new int[routine.count];
+		if (fingerprint(entry, at, cost) != routine.fingerprint)
+			return false;
+		Site site = new Site();
+		site.routine = routine;
+		site.entry = entry;
+		site.at = at;
+		site.cost = cost;
+		site.o = new int[at.length];
+		site.target = new int[at.length];
+		site.sites = sites;
+		for (int i = 0; i < at.length; i++){
+			int word = m.read(at[i]);
+			int instruction = word & 0xF;
+			int b = (word >> 10) & 0x3F;
+			site.o[i] = -1;
+			site.target[i] = -1;
+			if (((word >> 4) & 0x3F) == 0x1C && instruction <= 0x3 && instruction != 0 && b >= 0x1F){
+				int v = b == 0x1F ? m.read(at[i] + 1) : b - 0x20;
+				int after = at[i] + Recompiler.length(word);
+				if (instruction == 0x2)
+					v = after + v;
+				else if (instruction == 0x3)
+					v = after - v;
+				if (instruction != 0x1)
+					site.o[i] = (v >> 16) & 0xFFFF;
+				site.target[i] = v & 0xFFFF;
+			}
+			else if (instruction == 0 && ((word >> 4) & 0x3F) == 0x01 && b >= 0x1F)
+				site.target[i] = b == 0x1F ? m.read(at[i] + 1) : b - 0x20;
+		}
+		int last = at[at.length - 1];
+		site.length = last + Recompiler.length(m.read(last)) - entry;
+		for (int i = 0; i < site.length; i++)
+			covered[entry + i] = true;
+		sites[entry] = site;
+		entries[entry] = true;
+		forget(entry);
+		return true;
+	}
+
+	private void unbind(int entry){
+		sites[entry] = null;
+		entries[entry] = false;
+		forget(entry);
+	}
+
+	/*
+	 * Drops whatever the engines have made of the instruction at entry, so
+	 * that they notice it's been bound or unbound.
+	 */
+	private void forget(int entry){
+		cpu.decoded.written(entry);
+		Recompiler recompiler = cpu.recompiler();
+		if (recompiler != null)
+			recompiler.written(entry);
+	}
+
+	public void written(int location){
+		if (location > 0xFFFF || ! covered[location])
+			return;
+		for (int entry = Math.max(0, location - MAX_SPAN + 1); entry <= location; entry++){
+			Site site = sites[entry];
+			if (site != null && entry + site.length > location)
+				unbind(entry);
+		}
+	}
+
+	/**
+	 * Runs the routine bound at pc, if there is one and it will, and returns
+	 * whether it did. step() calls this with no skip pending.
+	 */
+	boolean call(int pc){
+		Site site = sites[pc];
+		if (site == null || checking)
+			return false;
+		if (verifying)
+			return verify(site);
+		long spent = site.routine.run(r, m, site);
+		if (spent < 0)
+			return false;
+		cpu.cycles += spent;
+		calls++;
+		return true;
+	}
+
+	/*
+	 * Runs the Java, puts everything back and runs the guest code, then
+	 * compares the two.
+	 */
+	private boolean verify(Site site){
+		long[] before = new long[DCPU16.CONTEXT_LONGS];
+		cpu.saveContext(before, 0);
+		int[] memory = snapshot();
+		long spent = site.routine.run(r, m, site);
+		if (spent < 0)
+			return false;
+		cpu.cycles += spent;
+		calls++;
+		long[] java = new long[DCPU16.CONTEXT_LONGS];
+		cpu.saveContext(java, 0);
+		int[] javaMemory = snapshot();
+		restore(memory);
+		cpu.restoreContext(before, 0);
+		int sp = r[Registers.SP];
+		int ret = m.read(sp);
+		checking = true;
+		try{
+			for (int steps = 0; steps < MAX_STEPS && (r[Registers.SP] != ((sp + 1) & 0xFFFF) || r[Registers.PC] != ret); steps++)
+				cpu.step();
+		}
+		finally{
+			checking = false;
+		}
+		long[] guest = new long[DCPU16.CONTEXT_LONGS];
+		cpu.saveContext(guest, 0);
+		String difference = compare(java, guest);
+		for (int i = 0; i < javaMemory.length && difference == null; i++)
+			if (javaMemory[i] != m.read(i))
+				difference = "[" + Hexer.hex(i) + "] " + Hexer.hex(javaMemory[i]) + " instead of " + Hexer.hex(m.read(i));
+		if (difference != null){
+			mismatches++;
+			lastMismatch = site.routine.label + " at " + Hexer.hex(site.entry) + " with A " + Hexer.hex((int)before[0] & 0xFFFF)
+					+ ", B " + Hexer.hex((int)(before[0] >> 16) & 0xFFFF) + ": " + difference;
+		}
+		return true;
+	}
+
+	private static final String[] REGISTERS = {"A", "B", "C", "X", "Y", "Z", "I", "J", "PC", "SP", "O"};
+
+	private static String compare(long[] java, long[] guest){
+		if (java[3] != guest[3])
+			return "cycles " + (java[3] - guest[3]) + " off";
+		for (int i = 0; i < 11; i++){
+			int j = (int)(java[i / 4] >> (i % 4 * 16)) & 0xFFFF;
+			int g = (int)(guest[i / 4] >> (i % 4 * 16)) & 0xFFFF;
+			if (j != g)
+				return REGISTERS[i] + " " + Hexer.hex(j) + " instead of " + Hexer.hex(g);
+		}
+		return null;
+	}
+
+	private int[] snapshot(){
+		int[] words = new int[0x10000];
+		for (int i = 0; i < words.length; i++)
+			words[i] = m.read(i);
+		return words;
+	}
+
+	private void restore(int[] words){
+		for (int i = 0; i < words.length; i++)
+			if (m.read(i) != words[i])
+				m.write(i, words[i]);
+	}
+
+	/*
+	 * Works out where each of the instructions from entry is and what it costs,
+	 * and returns a fingerprint of them that doesn't depend on where they were
+	 * assembled: a literal counts the same whether it's short or a next word,
+	 * a jump's target counts as which of the instructions it lands on (or -1
+	 * for somewhere else), whether it's a SET, ADD or SUB of PC, and a table
+	 * read through [next word + register] counts the same wherever it is.
+	 * Returns 0 if they run off the end of memory.
+	 */
+	int fingerprint(int entry, int[] at, int[] cost){
+		int pc = entry;
+		for (int i = 0; i < at.length; i++){
+			if (pc > 0xFFFF)
+				return 0;
+			int word = m.read(pc);
+			at[i] = pc;
+			cost[i] = Recompiler.length(word) - 1 + DecodeCache.cost(word);
+			pc += Recompiler.length(word);
+		}
+		if (pc > 0x10000)
+			return 0;
+		int hash = 1;
+		for (int i = 0; i < at.length; i++){
+			int word = m.read(at[i]);
+			int next = at[i] + 1;
+			if ((word & 0xF) == 0){
+				hash = hash * 31 + (word & 0x3FF);
+				int a = (word >> 10) & 0x3F;
+				hash = hash * 31 + operand(a, DecodeCache.hasNextWord(a) ? m.read(next) : 0, ((word >> 4) & 0x3F) == 0x01, at);
+				continue;
+			}
+			int instruction = word & 0xF;
+			int a = (word >> 4) & 0x3F;
+			int b = (word >> 10) & 0x3F;
+			if (a == 0x1C && instruction <= 0x3 && b >= 0x1F){ // the assembler makes some jumps relative
+				int v = b == 0x1F ? m.read(next) : b - 0x20;
+				int after = at[i] + Recompiler.length(word);
+				if (instruction == 0x2)
+					v = after + v;
+				else if (instruction == 0x3)
+					v = after - v;
+				hash = hash * 31 + 0x1;
+				hash = hash * 31 + a;
+				hash = hash * 31 + operand(0x1F, v & 0xFFFF, true, at);
+				continue;
+			}
+			hash = hash * 31 + instruction;
+			hash = hash * 31 + operand(a, DecodeCache.hasNextWord(a) ? m.read(next) : 0, false, at);
+			if (DecodeCache.hasNextWord(a))
+				next++;
+			hash = hash * 31 + operand(b, DecodeCache.hasNextWord(b) ? m.read(next) : 0, false, at);
+		}
+		return hash;
+	}
+
+	/*
+	 * What an operand adds to the fingerprint, given the value of its next
+	 * word (if it has one).
+	 */
+	private static int operand(int field, int next, boolean jump, int[] at){
+		int value;
+		if (field >= 0x20)
+			value = field - 0x20;
+		else if (field >= 0x10 && field < 0x18)
+			return field;
+		else if (DecodeCache.hasNextWord(field))
+			value = next;
+		else
+			return field;
+		if (field >= 0x1F){
+			field = 0x1F;
+			if (jump){
+				int target = -1;
+				for (int i = 0; i < at.length; i++)
+					if (at[i] == value)
+						target = i;
+				value = target;
+			}
+		}
+		return field << 16 ^ value;
+	}
+
+	private static void push(int[] r, Memory m, int value){
+		r[Registers.SP] = (r[Registers.SP] - 1) & 0xFFFF;
+		m.write(r[Registers.SP], value);
+	}
+
+	private static int pop(int[] r, Memory m){
+		int value = m.read(r[Registers.SP]);
+		r[Registers.SP] = (r[Registers.SP] + 1) & 0xFFFF;
+		return value;
+	}
+
+	private static long sum(int[] cost, int from, int to){
+		long sum = 0;
+		for (int i = from; i <= to; i++)
+			sum += cost[i];
+		return sum;
+	}
+
+	/*
+	 * Runs the routine bound at callee as the JSR that's instruction k of s
+	 * would, and gives back the cycles it took, the JSR's included.
+	 */
+	private static long call(int[] r, Memory m, Site s, int k, Site callee){
+		push(r, m, s.at[k] + Recompiler.length(m.read(s.at[k])));
+		return s.cost[k] + callee.routine.run(r, m, callee);
+	}
+
+	static abstract class Routine{
+
+		final String label;
+		final int count; // instructions from the entry through the last SET PC, POP (or the jump it ends with)
+		final int fingerprint;
+
+		Routine(String label, int count, int fingerprint){
+			this.label = label;
+			this.count = count;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Does what the guest code would, starting with the registers in r and
+		 * ending with the return, and gives back the cycles it took. The site's
+		 * arrays are indexed by instruction, in the order they are in the
+		 * source. Returns -1 without touching anything if it would rather the
+		 * guest code ran this time.
+		 */
+		abstract long run(int[] r, Memory m, Site s);
+
+		/**
+		 * Whether run() will run rather than give back -1 whatever the
+		 * registers, which for a routine that calls others means they're
+		 * bound where it calls them.
+		 */
+		boolean ready(Site s){
+			return true;
+		}
+
+	}
+
+	/*
+	 * lib/factorial.asm: A = A!, or 0 if that's more than 16 bits.
+	 */
+	private static class Factorial
+		extends Routine
+	{
+
+		Factorial(){
+			super("FACTORIAL", 13, 1039339492);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int b = a;
+			int o = r[Registers.O];
+			long c = cost[0] + cost[1]; // SET B, A; IFE B, 1
+			if (b == 1){
+				c += cost[2];
+				o = s.jump(2, o);
+			}
+			else{
+				c += SKIP;
+				while (true){
+					int v = b - 1; // _loop: SUB B, 1
+					b = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					c += cost[3] + cost[4]; // IFE B, 1
+					if (b == 1){
+						c += cost[5];
+						o = s.jump(5, o);
+						break;
+					}
+					v = a * b; // MUL A, B
+					o = (v >> 16) & 0xFFFF;
+					a = v & 0xFFFF;
+					c += SKIP + cost[6] + cost[7]; // IFN O, 0
+					if (o != 0){ // _error_out
+						a = 0;
+						c += cost[8] + cost[11] + cost[12];
+						o = s.jump(12, s.jump(8, o));
+						break;
+					}
+					c += SKIP + cost[9];
+					o = s.jump(9, o);
+				}
+			}
+			r[Registers.A] = a;
+			r[Registers.B] = b;
+			r[Registers.O] = o;
+			c += cost[10]; // _done: SET PC, POP
+			r[Registers.PC] = pop(r, m);
+			return c;
+		}
+
+	}
+
+	/*
+	 * sdiv in lib/signedint.asm: A = A / B, signed.
+	 */
+	private static class SignedDivide
+		extends Routine
+	{
+
+		SignedDivide(){
+			super("SDIV", 26, 952202017);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int b = r[Registers.B];
+			int o = r[Registers.O];
+			long c = cost[0]; // IFG A, 0x7fff
+			int divide; // which instruction the DIV A, B is
+			boolean negate; // whether neg(A) follows it
+			if (a > 0x7FFF){
+				c += cost[1] + cost[6]; // _a_neg: IFG B, 0x7fff
+				o = s.jump(1, o);
+				if (b > 0x7FFF){ // _both_neg
+					c += cost[7] + sum(cost, 20, 23);
+					o = s.jump(7, o);
+					a ^= 0xFFFF;
+					o = (a + 1) >> 16;
+					a = (a + 1) & 0xFFFF;
+					b ^= 0xFFFF;
+					o = (b + 1) >> 16;
+					b = (b + 1) & 0xFFFF;
+					divide = 24;
+					negate = false;
+				}
+				else{
+					c += SKIP + cost[8] + cost[9];
+					a ^= 0xFFFF;
+					o = (a + 1) >> 16;
+					a = (a + 1) & 0xFFFF;
+					divide = 10;
+					negate = true;
+				}
+			}
+			else{
+				c += SKIP + cost[2]; // IFG B, 0x7fff
+				if (b > 0x7FFF){ // _a_pos_b_neg
+					c += cost[3] + cost[14] + cost[15];
+					o = s.jump(3, o);
+					b ^= 0xFFFF;
+					o = (b + 1) >> 16;
+					b = (b + 1) & 0xFFFF;
+					divide = 16;
+					negate = true;
+				}
+				else{ // _both_positive
+					c += SKIP;
+					divide = 4;
+					negate = false;
+				}
+			}
+			if (b == 0){ // DIV by 0 doesn't cost the division
+				a = 0;
+				o = 0;
+				c += cost[divide] - 3;
+			}
+			else{
+				o = ((a << 16) / b) & 0xFFFF;
+				a = (a / b) & 0xFFFF;
+				c += cost[divide];
+			}
+			if (negate){
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += cost[divide + 1] + cost[divide + 2] + cost[divide + 3];
+			}
+			else
+				c += cost[divide + 1];
+			r[Registers.A] = a;
+			r[Registers.B] = b;
+			r[Registers.O] = o;
+			r[Registers.PC] = pop(r, m);
+			return c;
+		}
+
+	}
+
+	/*
+	 * abs in lib/signedint.asm: A = |A|, signed.
+	 */
+	private static class Abs
+		extends Routine
+	{
+
+		Abs(){
+			super("ABS", 5, -11554444);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			long c = cost[0]; // IFG 0x8000, A
+			if (0x8000 > a)
+				c += cost[1];
+			else{
+				a ^= 0xFFFF;
+				r[Registers.O] = (a + 1) >> 16;
+				r[Registers.A] = (a + 1) & 0xFFFF;
+				c += SKIP + cost[2] + cost[3] + cost[4];
+			}
+			r[Registers.PC] = pop(r, m);
+			return c;
+		}
+
+	}
+
+	/*
+	 * neg in lib/signedint.asm: A = -A.
+	 */
+	private static class Neg
+		extends Routine
+	{
+
+		Neg(){
+			super("NEG", 3, -1587599421);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A] ^ 0xFFFF;
+			r[Registers.O] = (a + 1) >> 16;
+			r[Registers.A] = (a + 1) & 0xFFFF;
+			r[Registers.PC] = pop(r, m);
+			return cost[0] + cost[1] + cost[2];
+		}
+
+	}
+
+	/*
+	 * lib/sqrt32.asm: A = the square root of BA, B the big half.
+	 */
+	private static class Sqrt32
+		extends Routine
+	{
+
+		Sqrt32(){
+			super("SQRT32", 86, 109402878);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int b = r[Registers.B];
+			if (a == 0 && b == 0)
+				return -1; // it goes round _sqrt_while2a forever
+			int o = r[Registers.O];
+			push(r, m, r[Registers.X]);
+			push(r, m, r[Registers.Y]);
+			push(r, m, r[Registers.Z]);
+			push(r, m, r[Registers.I]);
+			push(r, m, r[Registers.J]);
+			int x = 16384;
+			int c = 0;
+			int z;
+			int i = 0;
+			int j = 0;
+			int v;
+			long cycles = sum(cost, 0, 11); // ... IFG X, B
+			if (x > b){
+				cycles += cost[12];
+				o = s.jump(12, o);
+				while (true){ // _sqrt_while1
+					o = ((x << 16) >> 2) & 0xFFFF;
+					x = (x >> 2) & 0xFFFF;
+					c = o;
+					cycles += cost[14] + cost[15] + cost[16]; // IFE X, 0
+					if (x == 0){ // _sqrt_while2
+						cycles += cost[17] + cost[21]; // IFG A, C
+						o = s.jump(17, o);
+						if (a > c){
+							cycles += cost[22];
+							o = s.jump(22, o);
+						}
+						else{
+							cycles += SKIP;
+							while (true){ // _sqrt_while2a
+								o = ((c << 16) >> 2) & 0xFFFF;
+								c = (c >> 2) & 0xFFFF;
+								cycles += cost[23] + cost[24]; // IFG C, A
+								if (c > a){
+									cycles += cost[25];
+									o = s.jump(25, o);
+									continue;
+								}
+								cycles += SKIP + cost[26]; // IFE C, A
+								if (c == a){
+									cycles += cost[27];
+									o = s.jump(27, o);
+									continue;
+								}
+								cycles += SKIP;
+								break;
+							}
+						}
+						break;
+					}
+					cycles += SKIP + cost[18]; // IFG X, B
+					if (x > b){
+						cycles += cost[19];
+						o = s.jump(19, o);
+						continue;
+					}
+					cycles += SKIP + cost[20];
+					o = s.jump(20, o);
+					break;
+				}
+			}
+			else{
+				cycles += SKIP + cost[13];
+				o = s.jump(13, o);
+			}
+			while (true){ // _sqrt_next1
+				z = 0;
+				cycles += cost[28] + cost[29]; // IFE X, 0
+				if (x == 0){ // JSR _check_xc1
+					push(r, m, s.at[31]);
+					cycles += cost[30] + cost[50]; // IFE C, 0
+					if (c == 0){
+						z = 1;
+						cycles += cost[51];
+					}
+					else
+						cycles += SKIP;
+					pop(r, m);
+					cycles += cost[52];
+				}
+				else
+					cycles += SKIP;
+				cycles += cost[31]; // IFE Z, 1
+				if (z == 1){
+					cycles += cost[32];
+					o = s.jump(32, o);
+					break;
+				}
+				cycles += SKIP;
+				v = i + c;
+				i = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				v = j + o;
+				j = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				v = j + x;
+				j = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				z = 0;
+				push(r, m, s.at[38]); // JSR _check_ji1
+				cycles += sum(cost, 33, 37) + cost[53]; // IFG B, J
+				if (b > j){
+					z = 1;
+					cycles += cost[54];
+				}
+				else
+					cycles += SKIP;
+				cycles += cost[55]; // IFE B, J
+				if (b == j){ // JSR _check_ji2
+					push(r, m, s.at[57]);
+					cycles += cost[56] + cost[58]; // IFG A, I
+					if (a > i){
+						z = 1;
+						cycles += cost[59];
+					}
+					else
+						cycles += SKIP;
+					cycles += cost[60]; // IFE A, I
+					if (a == i){
+						z = 1;
+						cycles += cost[61];
+					}
+					else
+						cycles += SKIP;
+					pop(r, m);
+					cycles += cost[62];
+				}
+				else
+					cycles += SKIP;
+				pop(r, m);
+				v = i - c;
+				i = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				v = j + o;
+				j = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				v = j - x;
+				j = v & 0xFFFF;
+				o = (v >> 16) & 0xFFFF;
+				cycles += cost[57] + sum(cost, 38, 41); // ... IFE Z, 1
+				if (z == 1){ // _sqrt_cont1
+					v = a - i;
+					a = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = b + o;
+					b = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = b - j;
+					b = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = a - c;
+					a = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = b + o;
+					b = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = b - x;
+					b = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					o = ((i << 16) >> 1) & 0xFFFF;
+					i = (i >> 1) & 0xFFFF;
+					o = ((j << 16) >> 1) & 0xFFFF;
+					j = (j >> 1) & 0xFFFF;
+					i ^= o;
+					v = i + c;
+					i = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = j + o;
+					j = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					v = j + x;
+					j = v & 0xFFFF;
+					o = (v >> 16) & 0xFFFF;
+					o = ((c << 16) >> 2) & 0xFFFF;
+					c = (c >> 2) & 0xFFFF;
+					o = ((x << 16) >> 2) & 0xFFFF;
+					x = (x >> 2) & 0xFFFF;
+					c ^= o;
+					cycles += cost[42] + sum(cost, 63, 78);
+					o = s.jump(78, o);
+				}
+				else{
+					o = ((i << 16) >> 1) & 0xFFFF;
+					i = (i >> 1) & 0xFFFF;
+					o = ((j << 16) >> 1) & 0xFFFF;
+					j = (j >> 1) & 0xFFFF;
+					i ^= o;
+					o = ((c << 16) >> 2) & 0xFFFF;
+					c = (c >> 2) & 0xFFFF;
+					o = ((x << 16) >> 2) & 0xFFFF;
+					x = (x >> 2) & 0xFFFF;
+					c ^= o;
+					cycles += SKIP + sum(cost, 43, 49);
+					o = s.jump(49, o);
+				}
+			}
+			r[Registers.A] = i; // _sqrt_done
+			r[Registers.B] = b;
+			r[Registers.C] = c;
+			r[Registers.O] = o;
+			r[Registers.J] = pop(r, m);
+			r[Registers.I] = pop(r, m);
+			r[Registers.Z] = pop(r, m);
+			r[Registers.Y] = pop(r, m);
+			r[Registers.X] = pop(r, m);
+			r[Registers.PC] = pop(r, m);
+			return cycles + sum(cost, 79, 85);
+		}
+
+	}
+
+	/*
+	 * normalize_angle in lib/trig.asm: A = A (radians * 100) between -pi and
+	 * pi, with B the sign it came with.
+	 */
+	private static class NormalizeAngle
+		extends Routine
+	{
+
+		NormalizeAngle(){
+			super("NORMALIZE_ANGLE", 20, 1129696383);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int o = r[Registers.O];
+			int b = a & 0x8000;
+			long c = cost[0] + cost[1] + cost[2]; // IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[3];
+				o = s.jump(3, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[4] + cost[5];
+			}
+			a %= 628; // _done_unsign: MOD A, twopi100
+			c += cost[6] + cost[7]; // IFG pi100+1, A
+			if (315 > a){
+				c += cost[8];
+				o = s.jump(8, o);
+			}
+			else{ // a is from 315 to 627, so nothing below underflows
+				int v = a - 314;
+				r[Registers.C] = v;
+				a = 314 - v;
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + sum(cost, 9, 14);
+			}
+			c += cost[15]; // _done_reflect: IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[16];
+				o = s.jump(16, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[17] + cost[18];
+			}
+			r[Registers.A] = a;
+			r[Registers.B] = b;
+			r[Registers.O] = o;
+			r[Registers.PC] = pop(r, m);
+			return c + cost[19];
+		}
+
+	}
+
+	/*
+	 * reflect_angle_horizontally in lib/trig.asm: A = pi - A, radians * 100.
+	 */
+	private static class ReflectAngle
+		extends Routine
+	{
+
+		ReflectAngle(){
+			super("REFLECT_ANGLE_HORIZONTALLY", 5, -2050910927);
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int v = 157 - r[Registers.A]; // SUB C, A
+			int c = v & 0xFFFF;
+			v = 157 + c; // ADD A, C
+			r[Registers.C] = c;
+			r[Registers.A] = v & 0xFFFF;
+			r[Registers.O] = (v >> 16) & 0xFFFF;
+			r[Registers.PC] = pop(r, m);
+			return sum(s.cost, 0, 4);
+		}
+
+	}
+
+	/*
+	 * sin in lib/trig.asm: A = sin(A / 100) * 100, from sin_table.
+	 */
+	private static class Sin
+		extends Routine
+	{
+
+		Sin(){
+			super("SIN", 16, -1840103862);
+		}
+
+		boolean ready(Site s){
+			return s.callee(0, "NORMALIZE_ANGLE") != null && s.callee(9, "REFLECT_ANGLE_HORIZONTALLY") != null;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			if (! ready(s))
+				return -1;
+			int[] cost = s.cost;
+			long c = call(r, m, s, 0, s.callee(0, "NORMALIZE_ANGLE"));
+			int a = r[Registers.A];
+			int o = r[Registers.O];
+			int b = a & 0x8000;
+			c += cost[1] + cost[2] + cost[3]; // IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[4];
+				o = s.jump(4, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[5] + cost[6];
+			}
+			c += cost[7]; // _done_unsign: IFG halfpi100+1, A
+			if (158 > a){
+				c += cost[8];
+				o = s.jump(8, o);
+			}
+			else{
+				r[Registers.A] = a;
+				r[Registers.B] = b;
+				r[Registers.O] = o;
+				c += SKIP + call(r, m, s, 9, s.callee(9, "REFLECT_ANGLE_HORIZONTALLY"));
+				a = r[Registers.A];
+				o = r[Registers.O];
+			}
+			a = m.read((m.read(s.at[10] + 1) + a) & 0xFFFF); // _done_reflect: SET A, [sin_table+A]
+			c += cost[10] + cost[11]; // IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[12];
+				o = s.jump(12, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[13] + cost[14];
+			}
+			r[Registers.A] = a;
+			r[Registers.B] = b;
+			r[Registers.O] = o;
+			r[Registers.PC] = pop(r, m);
+			return c + cost[15];
+		}
+
+	}
+
+	/*
+	 * cos in lib/trig.asm, which goes on into sin.
+	 */
+	private static class Cos
+		extends Routine
+	{
+
+		Cos(){
+			super("COS", 3, -878372779);
+		}
+
+		boolean ready(Site s){
+			return s.callee(0, "NORMALIZE_ANGLE") != null && s.callee(2, "SIN") != null;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			if (! ready(s))
+				return -1;
+			long c = call(r, m, s, 0, s.callee(0, "NORMALIZE_ANGLE"));
+			int v = r[Registers.A] + 157; // ADD A, halfpi100
+			r[Registers.A] = v & 0xFFFF;
+			r[Registers.O] = s.jump(2, (v >> 16) & 0xFFFF);
+			Site sin = s.callee(2, "SIN");
+			return c + s.cost[1] + s.cost[2] + sin.routine.run(r, m, sin);
+		}
+
+	}
+
+	/*
+	 * asin in lib/trig.asm: A = asin(A / 100) * 100, from asin_table. It's
+	 * left to the guest code when A is out of range, which it complains about.
+	 */
+	private static class Asin
+		extends Routine
+	{
+
+		Asin(){
+			super("ASIN", 14, 795721056);
+		}
+
+		static boolean inRange(int a){
+			return a <= 100 || a >= 0x10000 - 100;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int o = r[Registers.O];
+			if (! inRange(a))
+				return -1;
+			int b = a & 0x8000;
+			long c = cost[0] + cost[1] + cost[2]; // IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[3];
+				o = s.jump(3, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[4] + cost[5];
+			}
+			a = m.read((m.read(s.at[8] + 1) + a) & 0xFFFF); // IFG A, 100 and SET A, [asin_table+A]
+			c += cost[6] + SKIP + cost[8] + cost[9]; // IFN B, 0x8000
+			if (b != 0x8000){
+				c += cost[10];
+				o = s.jump(10, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[11] + cost[12];
+			}
+			r[Registers.A] = a;
+			r[Registers.B] = b;
+			r[Registers.O] = o;
+			r[Registers.PC] = pop(r, m);
+			return c + cost[13];
+		}
+
+	}
+
+	/*
+	 * acos in lib/trig.asm: asin, less pi / 2, normalized.
+	 */
+	private static class Acos
+		extends Routine
+	{
+
+		Acos(){
+			super("ACOS", 4, 1011204286);
+		}
+
+		boolean ready(Site s){
+			return s.callee(0, "ASIN") != null && s.callee(2, "NORMALIZE_ANGLE") != null;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			if (! ready(s) || ! Asin.inRange(r[Registers.A]))
+				return -1;
+			long c = call(r, m, s, 0, s.callee(0, "ASIN"));
+			int v = r[Registers.A] - 157; // SUB A, halfpi100
+			r[Registers.A] = v & 0xFFFF;
+			r[Registers.O] = (v >> 16) & 0xFFFF;
+			c += s.cost[1] + call(r, m, s, 2, s.callee(2, "NORMALIZE_ANGLE"));
+			r[Registers.PC] = pop(r, m);
+			return c + s.cost[3];
+		}
+
+	}
+
+	/*
+	 * tan in lib/trig.asm: A = sin / cos, or +-0x7FFF where cos is 0.
+	 */
+	private static class Tan
+		extends Routine
+	{
+
+		Tan(){
+			super("TAN", 21, 1220628315);
+		}
+
+		boolean ready(Site s){
+			return s.callee(3, "COS") != null && s.callee(6, "SIN") != null && s.callee(11, "SDIV") != null;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			if (! ready(s))
+				return -1;
+			int[] cost = s.cost;
+			push(r, m, r[Registers.X]);
+			push(r, m, r[Registers.Y]);
+			int x = r[Registers.A];
+			r[Registers.X] = x;
+			long c = cost[0] + cost[1] + cost[2] + call(r, m, s, 3, s.callee(3, "COS"));
+			int y = r[Registers.A];
+			r[Registers.Y] = y;
+			r[Registers.A] = x;
+			c += cost[4] + cost[5] + call(r, m, s, 6, s.callee(6, "SIN"));
+			int a = r[Registers.A];
+			int o = r[Registers.O];
+			c += cost[7]; // IFE Y, 0
+			if (y == 0){ // _inf: IFG A, 0x7FFF
+				c += cost[8] + cost[13];
+				o = s.jump(8, o);
+				if (a > 0x7FFF){ // _neg_inf
+					c += cost[14] + cost[17];
+					o = s.jump(14, o);
+					a = 0x8001;
+				}
+				else{
+					c += SKIP + cost[15] + cost[16];
+					o = s.jump(16, o);
+					a = 0x7FFF;
+				}
+				r[Registers.A] = a;
+				r[Registers.O] = o;
+			}
+			else{
+				int v = a * 100; // MUL A, 100
+				r[Registers.A] = v & 0xFFFF;
+				r[Registers.B] = y;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				c += SKIP + cost[9] + cost[10] + call(r, m, s, 11, s.callee(11, "SDIV")) + cost[12];
+				r[Registers.O] = s.jump(12, r[Registers.O]);
+			}
+			r[Registers.Y] = pop(r, m); // _return
+			r[Registers.X] = pop(r, m);
+			r[Registers.PC] = pop(r, m);
+			return c + cost[18] + cost[19] + cost[20];
+		}
+
+	}
+
+	/*
+	 * radians_to_degrees and degrees_to_radians in lib/trig.asm: A = A * by
+	 * / over, signed, and normalized after if it's to radians.
+	 */
+	private static class AngleUnits
+		extends Routine
+	{
+
+		private final int by;
+		private final int over;
+
+		AngleUnits(String label, int count, int fingerprint, int by, int over){
+			super(label, count, fingerprint);
+			this.by = by;
+			this.over = over;
+		}
+
+		boolean ready(Site s){
+			return count == 13 || s.callee(12, "NORMALIZE_ANGLE") != null;
+		}
+
+		long run(int[] r, Memory m, Site s){
+			if (! ready(s))
+				return -1;
+			int[] cost = s.cost;
+			int a = r[Registers.A];
+			int o = r[Registers.O];
+			int sign = a & 0x8000;
+			long c = cost[0] + cost[1] + cost[2]; // IFN C, 0x8000
+			if (sign != 0x8000){
+				c += cost[3];
+				o = s.jump(3, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[4] + cost[5];
+			}
+			a = (a * by) & 0xFFFF; // _done_unsign: MUL A, by and DIV A, over
+			o = ((a << 16) / over) & 0xFFFF;
+			a /= over;
+			c += cost[6] + cost[7] + cost[8]; // IFN C, 0x8000
+			if (sign != 0x8000){
+				c += cost[9];
+				o = s.jump(9, o);
+			}
+			else{
+				a ^= 0xFFFF;
+				o = (a + 1) >> 16;
+				a = (a + 1) & 0xFFFF;
+				c += SKIP + cost[10] + cost[11];
+			}
+			r[Registers.A] = a;
+			r[Registers.C] = sign;
+			r[Registers.O] = o;
+			if (count == 14)
+				c += call(r, m, s, 12, s.callee(12, "NORMALIZE_ANGLE"));
+			r[Registers.PC] = pop(r, m);
+			return c + cost[count - 1];
+		}
+
+	}
+
+}
@@ -0,0 +1,128 @@
+package dcpu16;
+
+import java.io.*;
+
+/**
+ * The writes made to a DCPU16's memory from outside (see DCPU16.input()),
+ * each with the cycle it went in at, so that a session can be run again
+ * without whatever made them. DCPU16.record() fills one and DCPU16.replay()
+ * plays one back: each write goes in between the same two instructions as
+ * before, and input from outside is ignored until the journal runs out.
+ *
+ * A replay only comes out the same if it starts from the same state as the
+ * recording did, at the same cycle count, and if it can stop everywhere the
+ * recording did. Writes go in at the first place the engine stops at by
+ * their cycle: step() stops after every instruction, table dispatch not
+ * between a condition and the jump it's fused with, and the Recompiler only
+ * between blocks. So replay with the engine the recording was made with, or
+ * with step(), which replays anything. In cycle-exact mode (see
+ * DCPU16.setCycleExact()) every engine stops where step() does.
+ */
+public class Journal{
+
+	private static final int MAGIC = 0x4A524E4C; // JRNL
+
+	private long start = -1; // the cycle count recording started at
+	private long[] cycles = new long[64];
+	private int[] writes = new int[64]; // address in the high half, value in the low
+	private int count = 0;
+
+	/*
+	 * Plays the writes from next on into a DCPU16, scheduling itself for
+	 * the cycle of each.
+	 */
+	class Player
+		implements Scheduler.Event
+	{
+
+		private int next = 0;
+
+		public void fire(DCPU16 d){
+			while (next < count && cycles[next] <= d.cycles){
+				d.memory().write(writes[next] >>> 16, writes[next] & 0xFFFF);
+				next++;
+			}
+			if (next < count)
+				d.scheduler().schedule(cycles[next], this);
+			else
+				d.replayed(Journal.this);
+		}
+
+	}
+
+	public long start(){
+		return start;
+	}
+
+	public synchronized int size(){
+		return count;
+	}
+
+	public synchronized long cycle(int i){
+		return cycles[i];
+	}
+
+	public synchronized int address(int i){
+		return writes[i] >>> 16;
+	}
+
+	public synchronized int value(int i){
+		return writes[i] & 0xFFFF;
+	}
+
+	void begin(long cycle){
+		if (start < 0)
+			start = cycle;
+	}
+
+	synchronized void add(long cycle, int address, int value){
+		if (count == cycles.length){
+			cycles = java.util.Arrays.copyOf(cycles, count * 2);
+			writes = java.util.Arrays.copyOf(writes, count * 2);
+		}
+		cycles[count] = cycle;
+		writes[count] = address << 16 | (value & 0xFFFF);
+		count++;
+	}
+
+	public synchronized void save(File file)
+		throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try{
+			out.writeInt(MAGIC);
+			out.writeLong(start);
+			out.writeInt(count);
+			for (int i = 0; i < count; i++){
+				out.writeLong(cycles[i]);
+				out.writeInt(writes[i]);
+			}
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	public static Journal load(File file)
+		throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try{
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " isn't a journal");
+			Journal journal = new Journal();
+			journal.start = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++){
+				long cycle = in.readLong();
+				int write = in.readInt();
+				journal.add(cycle, write >>> 16, write & 0xFFFF);
+			}
+			return journal;
+		}
+		finally{
+			in.close();
+		}
+	}
+
+}
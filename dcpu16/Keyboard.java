@@ -0,0 +1,160 @@
+package dcpu16;
+
+/**
+ * A DCPUConsole's keyboard buffer: 16 slots from start, each holding a key
+ * until the program takes it out by writing 0 back. Keys typed for a DCPU16
+ * always go in from a Scheduler event, through input(), whatever state it's
+ * in, so that they land between instructions and in the journal being
+ * recorded. One that's paused or stopped takes them when it runs again.
+ * Without a DCPU16 they're written to memory right away.
+ */
+class Keyboard{
+
+	private final Memory m;
+	private final int start;
+	private volatile DCPU16 d;
+	private volatile int position = 0; // the slot after the last key put in, by whoever
+	private Memory.Listener keys; // keeps position up to date
+
+	Keyboard(Memory m, int start){
+		this.m = m;
+		this.start = start;
+	}
+
+	void setDCPU16(DCPU16 d){
+		this.d = d;
+	}
+
+	/*
+	 * Keys can go into the buffer from a journal being replayed as well as
+	 * from here, so where the next one goes is worked out from every key
+	 * written there rather than only from the ones typed.
+	 */
+	void follow(){
+		keys = new Memory.Listener(){
+			public void written(int location){
+				int slot = location - start;
+				if (slot >= 0 && slot < 0x10 && m.read(location) != 0)
+					position = (slot + 1) & 0xF;
+			}
+		};
+		m.addListener(keys);
+	}
+
+	void unfollow(){
+		if (keys != null)
+			m.removeListener(keys);
+		keys = null;
+	}
+
+	void type(final char k){
+		DCPU16 d = this.d;
+		if (d == null){
+			deliver(k);
+			return;
+		}
+		d.scheduler().schedule(d.cycles(), new Scheduler.Event(){
+			public void fire(DCPU16 d){
+				deliver(k);
+			}
+		});
+	}
+
+	/*
+	 * Puts k in the next slot, which moves position on (see follow()), or
+	 * beeps if the slot is still full or a journal is being replayed.
+	 */
+	private void deliver(char k){
+		int location = start + position;
+		DCPU16 d = this.d;
+		if (m.read(location) != 0 || (d != null && d.isReplaying())){
+			java.awt.Toolkit.getDefaultToolkit().beep();
+			return;
+		}
+		if (d != null)
+			d.input(location, k); // so that a journal can have it
+		else
+			m.write(location, k);
+	}
+
+	/*
+	 * Types keys into a program that copies them out of the buffer while it
+	 * runs, while it's paused and while it's stopped, and checks that they
+	 * all come out in order once it has run again, and that replaying the
+	 * journal gives the same.
+	 */
+	public static void main(String[] args) throws InterruptedException{
+		int[] program = { // copies each key to 0x1000 onwards
+			0x816C, 0x9000, 0x81C1, // :loop IFE [0x9000+I], 0 / SET PC, loop
+			0x5971, 0x1000, 0x9000, // SET [0x1000+J], [0x9000+I]
+			0x8161, 0x9000, 0x8462, 0xBC69, // SET [0x9000+I], 0 / ADD I, 1 / AND I, 0xF
+			0x8472, 0x81C1 // ADD J, 1 / SET PC, loop
+		};
+		DCPU16 d = new DCPU16();
+		d.memory().write(0, program);
+		Journal journal = new Journal();
+		d.record(journal);
+		Keyboard keyboard = new Keyboard(d.memory(), 0x9000);
+		keyboard.setDCPU16(d);
+		keyboard.follow();
+		boolean ok = true;
+
+		Thread runner = start(d);
+		type(keyboard, "ab");
+		ok &= await(d, 2);
+		d.pause();
+		type(keyboard, "cd");
+		ok &= d.registers().read(Registers.J) == 2 && d.scheduler().size() == 2; // waiting to go in
+		d.resume();
+		ok &= await(d, 4);
+		d.stop();
+		runner.join();
+		type(keyboard, "ef");
+		ok &= d.registers().read(Registers.J) == 4 && d.scheduler().size() == 2;
+		runner = start(d);
+		ok &= await(d, 6);
+		d.stop();
+		runner.join();
+		String copied = copied(d);
+		ok &= copied.equals("abcdef") && journal.size() == 6;
+
+		DCPU16 again = new DCPU16();
+		again.memory().write(0, program);
+		again.replay(journal);
+		again.runFor(d.cycles());
+		ok &= copied(again).equals(copied);
+		System.out.println("keys typed while running, paused and stopped came out as \"" + copied + "\", " + journal.size() + " in the journal: " + (ok ? "OK" : "WRONG"));
+	}
+
+	private static Thread start(final DCPU16 d){
+		Thread runner = new Thread(){
+			public void run(){
+				d.run();
+			}
+		};
+		runner.start();
+		return runner;
+	}
+
+	private static void type(Keyboard keyboard, String keys){
+		for (int i = 0; i < keys.length(); i++)
+			keyboard.type(keys.charAt(i));
+	}
+
+	/*
+	 * Waits up to a second for the program to have copied n keys.
+	 */
+	private static boolean await(DCPU16 d, int n) throws InterruptedException{
+		for (int i = 0; i < 1000 && d.memory().read(0x1000 + n - 1) == 0; i++)
+			Thread.sleep(1);
+		return d.memory().read(0x1000 + n - 1) != 0;
+	}
+
+	private static String copied(DCPU16 d){
+		String s = "";
+		for (int i = 0x1000; d.memory().read(i) != 0; i++)
+			s += (char)d.memory().read(i);
+		return s;
+	}
+
+}
@@ -0,0 +1,196 @@
+package dcpu16;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Memory kept in a file mapped into memory, so that other processes on the
+ * same machine (loggers, viewers, a debugger) can look at a DCPU16's words as
+ * they change without copying, and so that they're still there after the JVM
+ * goes away. Word n is the big-endian int at byte 4 * n, stored and read
+ * with the mask just as Memory does, so the file is 4 * size() bytes long.
+ * size() comes out as it would for a Memory of the same size, a whole number
+ * of pages.
+ *
+ * A file that's already there keeps what's in it, and is made longer or
+ * shorter to fit. Writes made to the file from outside aren't seen by a
+ * DCPU16's caches, so other processes should only read it. The operating
+ * system writes changes back when it likes, or on force().
+ */
+public class MappedMemory
+	extends Memory
+{
+
+	private int size;
+	private int mask = 0xFFFFFFFF;
+	private MappedByteBuffer buffer;
+	private IntBuffer words;
+
+	public MappedMemory(File file, int size)
+		throws IOException
+	{
+		super(size);
+		this.size = super.size();
+		RandomAccessFile f = new RandomAccessFile(file, "rw");
+		try{
+			f.setLength(this.size * 4L);
+			buffer = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.size * 4L);
+		}
+		finally{
+			f.close(); // the mapping stays
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		words = buffer.asIntBuffer();
+	}
+
+	public void setMask(int mask){
+		super.setMask(mask);
+		this.mask = mask;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public int read(int location){
+		if (location < 0 || location >= size){
+			pastEnd(location, false);
+			return 0;
+		}
+		return words.get(location) & mask;
+	}
+
+	public void write(int location, int value){
+		if (location < 0 || location >= size){
+			pastEnd(location, true);
+			return;
+		}
+		words.put(location, value & mask);
+		written(location);
+	}
+
+	public void write(int start, int[] values){
+		int n = Math.max(0, Math.min(values.length, size - start));
+		for (int i = 0; i < n; i++){
+			words.put(start + i, values[i] & mask);
+			written(start + i);
+		}
+		for (int i = n; i < values.length; i++)
+			pastEnd(start + i, true);
+	}
+
+	public void read(int start, int[] into, int offset, int length){
+		int n = Math.max(0, Math.min(length, size - start));
+		if (n > 0)
+			words.get(start, into, offset, n);
+		for (int i = 0; i < n; i++)
+			into[offset + i] &= mask;
+		if (n < length){
+			pastEnd(start + n, false);
+			java.util.Arrays.fill(into, offset + n, offset + length, 0);
+		}
+	}
+
+	/**
+	 * Writes any changes out to the file now.
+	 */
+	public void force(){
+		buffer.force();
+	}
+
+	/*
+	 * Checks a MappedMemory against a Memory with random reads and writes, a
+	 * program against the same program on a FlatMemory, and that what's
+	 * written is still in the file when it's opened again.
+	 */
+	public static void main(String[] args){
+		try{
+			check();
+		}
+		catch (IOException e){
+			e.printStackTrace();
+		}
+	}
+
+	private static void check()
+		throws IOException
+	{
+		java.util.Random random = new java.util.Random(1);
+		File file = File.createTempFile("mapped", ".dcpu16");
+		file.deleteOnExit();
+		for (int size : new int[]{0x10, 0x1007, 0x10000})
+			for (int mask : new int[]{0xFFFF, 0xFF}){
+				file.delete();
+				Memory m = new Memory(size);
+				MappedMemory mapped = new MappedMemory(file, size);
+				m.setMask(mask);
+				mapped.setMask(mask);
+				boolean same = m.size() == mapped.size();
+				for (int i = 0; i < 100000 && same; i++){
+					int kind = random.nextInt(4);
+					int location = random.nextInt(m.size() + 8); // now and then past the end
+					int value = random.nextInt();
+					int[] words = new int[random.nextInt(8) + 1];
+					for (int k = 0; k < words.length; k++)
+						words[k] = random.nextInt();
+					same = attempt(m, kind, location, value, words.clone()).equals(attempt(mapped, kind, location, value, words));
+				}
+				System.out.println("Size " + size + ", mask " + Integer.toHexString(mask) + ": " + (same ? "same as Memory" : "DIFFERENT"));
+			}
+		file.delete();
+		MappedMemory mapped = new MappedMemory(file, 0x10000);
+		DCPU16 a = new DCPU16(mapped), b = new DCPU16();
+		int[] program = {
+			0x8401, // SET A, 1
+			0x7C04, 0x6255, // :loop MUL A, 0x6255
+			0x7C02, 0x3619, // ADD A, 0x3619
+			0x0011, // SET B, A
+			0x7C19, 0x7FFF, // AND B, 0x7FFF
+			0x0091, // SET [B], A
+			0x85C1, // SET PC, loop
+		};
+		a.memory().write(0, program);
+		b.memory().write(0, program);
+		a.runFor(1000000);
+		b.runFor(1000000);
+		boolean same = a.registers().dump().equals(b.registers().dump()) && a.cycles() == b.cycles();
+		for (int i = 0; i < 0x10000 && same; i++)
+			same = a.memory().read(i) == b.memory().read(i);
+		System.out.println("A program on it: " + (same ? "same as on a FlatMemory" : "DIFFERENT"));
+		mapped.force();
+		MappedMemory again = new MappedMemory(file, 0x10000);
+		same = true;
+		for (int i = 0; i < 0x10000 && same; i++)
+			same = again.read(i) == b.memory().read(i);
+		System.out.println("Opened again: " + (same ? "all there" : "DIFFERENT"));
+	}
+
+	/*
+	 * Writes or reads a word, or writes or reads words, and says what came of
+	 * it.
+	 */
+	private static String attempt(Memory m, int kind, int location, int value, int[] words){
+		try{
+			switch (kind){
+				case 0:
+					m.write(location, value);
+					return "wrote";
+				case 1:
+					m.write(location, words);
+					return "wrote";
+				case 2:
+					return "read " + m.read(location);
+				default:
+					m.read(location, words, 0, words.length);
+					return "read " + java.util.Arrays.toString(words);
+			}
+		}
+		catch (RuntimeException e){
+			return e.getMessage();
+		}
+	}
+
+}
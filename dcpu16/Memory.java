@@ -8,6 +8,28 @@ public class Memory{
 	private int pageSize = 0x100;
 	private int[][] pages;
 	private int mask = 0xFFFFFFFF;
+	private Listener[] listeners = new Listener[0];
+	private FaultListener faultListener;
+
+	/**
+	 * Told about every write, whoever makes it, so that anything caching what
+	 * it read from memory (like a DCPU16's decoded instructions) can let go of it.
+	 */
+	public interface Listener{
+
+		public void written(int location);
+
+	}
+
+	/**
+	 * Told about a read or write past the end instead of it being thrown. The
+	 * read comes back 0 and the write goes nowhere, unless the listener throws.
+	 */
+	public interface FaultListener{
+
+		public void pastEnd(int location, boolean write);
+
+	}
 
 	public Memory(int size){
 		pageCount = (size - 1) / pageSize + 1; // at least 1 page
@@ -24,17 +46,42 @@ public class Memory{
 		this.mask = mask;
 	}
 
+	public void setFaultListener(FaultListener listener){
+		faultListener = listener;
+	}
+
+	public synchronized void addListener(Listener listener){
+		Listener[] more = new Listener[listeners.length + 1];
+		System.arraycopy(listeners, 0, more, 0, listeners.length);
+		more[listeners.length] = listener;
+		listeners = more;
+	}
+
+	public synchronized void removeListener(Listener listener){
+		for (int i = 0; i < listeners.length; i++)
+			if (listeners[i] == listener){
+				Listener[] fewer = new Listener[listeners.length - 1];
+				System.arraycopy(listeners, 0, fewer, 0, i);
+				System.arraycopy(listeners, i + 1, fewer, i, fewer.length - i);
+				listeners = fewer;
+				return;
+			}
+	}
+
 	public int size(){
 		return pageSize * pageCount;
 	}
 
 	public void write(int location, int value){
 		int page = location / pageSize;
-		if (page >= pageCount)
-			throw new RuntimeException("Attempt to write past end of emulated memory " + location + ".");
+		if (page >= pageCount){
+			pastEnd(location, true);
+			return;
+		}
 		if (pages[page] == null)
 			pages[page] = new int[pageSize];
 		pages[page][location % pageSize] = value & mask;
+		written(location);
 	}
 
 	public void write(int start, int[] values){
@@ -44,13 +91,57 @@ public class Memory{
 
 	public int read(int location){
 		int page = location / pageSize;
-		if (page >= pageCount)
-			throw new RuntimeException("Attempt to read past end of emulated memory " + location + ".");
+		if (page >= pageCount){
+			pastEnd(location, false);
+			return 0;
+		}
 		if (pages[page] == null)
 			return 0;
 		return pages[page][location % pageSize] & mask;
 	}
 
+	/**
+	 * Reads length words from start into the array from offset, a page at a time
+	 * instead of a word at a time. Past the end reads as it does in read().
+	 */
+	public void read(int start, int[] into, int offset, int length){
+		while (length > 0){
+			int page = start / pageSize;
+			if (page >= pageCount){
+				pastEnd(start, false);
+				java.util.Arrays.fill(into, offset, offset + length, 0);
+				return;
+			}
+			int from = start % pageSize;
+			int n = Math.min(length, pageSize - from);
+			int[] words = pages[page];
+			if (words == null)
+				java.util.Arrays.fill(into, offset, offset + n, 0);
+			else
+				for (int i = 0; i < n; i++)
+					into[offset + i] = words[from + i] & mask;
+			start += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/*
+	 * For memories that keep their words somewhere else, like a Fleet's: tells
+	 * the listeners about a write.
+	 */
+	protected void written(int location){
+		Listener[] listeners = this.listeners;
+		for (int i = 0; i < listeners.length; i++)
+			listeners[i].written(location);
+	}
+
+	protected void pastEnd(int location, boolean write){
+		if (faultListener == null)
+			throw new RuntimeException("Attempt to " + (write ? "write" : "read") + " past end of emulated memory " + location + ".");
+		faultListener.pastEnd(location, write);
+	}
+
 	public int[] read(int start, int end){
 		if (start >= size())
 			start = size() - 1;
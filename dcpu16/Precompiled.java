@@ -0,0 +1,215 @@
+package dcpu16;
+
+import java.io.*;
+import java.util.*;
+import java.util.jar.*;
+
+import hexer.*;
+
+/**
+ * An assembled image with its code already translated by the Recompiler, so
+ * that a ROM which gets run again and again doesn't have to warm up each time.
+ *
+ * Code is found by following control flow from address 0: falling through,
+ * both ways out of every IFx, into a JSR and back, and jumps whose target is
+ * a literal (SET PC, ADD PC and SUB PC). Whatever is only reached through a
+ * computed jump, and whatever turns out to be data, runs the usual way. Blocks
+ * that came from here are thrown away like any other when their words change.
+ *
+ * Saved as a jar with image.x, in the same format the Assembler writes, and a
+ * class file for each block named blocks/START-LENGTH.class (both in hex).
+ */
+public class Precompiled{
+
+	private int[] image;
+	private ArrayList<CompiledBlock> blocks = new ArrayList<CompiledBlock>();
+
+	private Precompiled(int[] image){
+		this.image = image;
+	}
+
+	/**
+	 * Translates everything in the image that can be reached from address 0.
+	 */
+	public static Precompiled translate(int[] image){
+		if (image.length > 0x10000)
+			throw new IllegalArgumentException("Image is larger than the DCPU16's memory");
+		Precompiled p = new Precompiled(image.clone());
+		DCPU16 d = new DCPU16();
+		Memory m = d.memory();
+		m.write(0, image);
+		boolean[] reachable = new boolean[0x10000];
+		ArrayDeque<Integer> starts = new ArrayDeque<Integer>();
+		follow(m, image.length, reachable, starts);
+		Recompiler recompiler = new Recompiler(d);
+		boolean[] translated = new boolean[0x10000];
+		while (! starts.isEmpty()){
+			int start = starts.poll();
+			if (start >= image.length || ! reachable[start] || translated[start])
+				continue;
+			translated[start] = true;
+			CompiledBlock block = recompiler.translate(start);
+			int end;
+			if (block == null)
+				end = start + Recompiler.length(m.read(start));
+			else{
+				end = start + block.length;
+				if (end <= image.length)
+					p.blocks.add(block);
+			}
+			if (end < image.length)
+				starts.add(end); // where a block that didn't jump leaves PC
+		}
+		return p;
+	}
+
+	/*
+	 * Marks every instruction reachable from 0 and queues up each place that
+	 * execution can arrive at other than by falling through.
+	 */
+	private static void follow(Memory m, int size, boolean[] reachable, ArrayDeque<Integer> starts){
+		ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+		work.add(0);
+		starts.add(0);
+		while (! work.isEmpty()){
+			int pc = work.poll();
+			if (pc >= size || reachable[pc])
+				continue;
+			reachable[pc] = true;
+			int word = m.read(pc);
+			int next = pc + Recompiler.length(word);
+			int instruction = word & 0xF;
+			int a = (word >> 4) & 0x3F;
+			int b = (word >> 10) & 0x3F;
+			if (instruction == 0){
+				if (a != 0x01)
+					continue; // reserved, the interpreter will complain about it
+				int target = literal(m, b, pc + 1);
+				if (target >= 0)
+					jump(target, work, starts);
+				jump(next, work, starts);
+			}
+			else if (Recompiler.isIf(word)){
+				work.add(next);
+				if (next < size)
+					jump(next + Recompiler.length(m.read(next)), work, starts);
+			}
+			else if (a == 0x1C){
+				int offset = literal(m, b, pc + 1);
+				if (offset < 0)
+					continue; // computed
+				if (instruction == 0x1)
+					jump(offset, work, starts);
+				else if (instruction == 0x2)
+					jump((next + offset) & 0xFFFF, work, starts);
+				else if (instruction == 0x3)
+					jump((next - offset) & 0xFFFF, work, starts);
+			}
+			else
+				work.add(next);
+		}
+	}
+
+	private static void jump(int target, ArrayDeque<Integer> work, ArrayDeque<Integer> starts){
+		work.add(target);
+		starts.add(target);
+	}
+
+	/*
+	 * The value of a literal operand, or -1 if it isn't one.
+	 */
+	private static int literal(Memory m, int resource, int nextWord){
+		if (resource >= 0x20)
+			return resource - 0x20;
+		if (resource == 0x1F && nextWord <= 0xFFFF)
+			return m.read(nextWord);
+		return -1;
+	}
+
+	public int blockCount(){
+		return blocks.size();
+	}
+
+	public int[] image(){
+		return image.clone();
+	}
+
+	/**
+	 * Loads the image into the DCPU16's memory at 0 and turns on its
+	 * Recompiler with every block already in place.
+	 */
+	public void install(DCPU16 d){
+		d.memory().write(0, image);
+		d.setRecompiling(true);
+		for (CompiledBlock block : blocks)
+			d.recompiler().install(Recompiler.copy(block));
+	}
+
+	public void save(String filename)
+		throws IOException
+	{
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(filename));
+		try{
+			out.putNextEntry(new JarEntry("image.x"));
+			for (int word : image){
+				out.write(word >> 8);
+				out.write(word);
+			}
+			out.closeEntry();
+			for (CompiledBlock block : blocks){
+				out.putNextEntry(new JarEntry("blocks/" + Hexer.hex(block.start) + "-" + Hexer.hex(block.length) + ".class"));
+				out.write(block.classFile);
+				out.closeEntry();
+			}
+		}
+		finally{
+			out.close();
+		}
+	}
+
+	public static Precompiled load(String filename)
+		throws IOException
+	{
+		JarFile jar = new JarFile(filename);
+		try{
+			JarEntry imageEntry = jar.getJarEntry("image.x");
+			if (imageEntry == null)
+				throw new IOException(filename + " has no image.x");
+			byte[] octets = readAll(jar.getInputStream(imageEntry));
+			int[] image = new int[octets.length / 2];
+			for (int i = 0; i < image.length; i++)
+				image[i] = ((octets[i * 2] & 0xFF) << 8) | (octets[i * 2 + 1] & 0xFF);
+			Precompiled p = new Precompiled(image);
+			Enumeration<JarEntry> entries = jar.entries();
+			while (entries.hasMoreElements()){
+				JarEntry entry = entries.nextElement();
+				String name = entry.getName();
+				if (! name.matches("blocks/[0-9A-Fa-f]+-[0-9A-Fa-f]+\\.class"))
+					continue;
+				String[] parts = name.substring(7, name.length() - 6).split("-");
+				int start = Hexer.unhex(parts[0]);
+				int length = Hexer.unhex(parts[1]);
+				if (start + length > image.length)
+					throw new IOException(name + " lies outside the image in " + filename);
+				p.blocks.add(Recompiler.define(readAll(jar.getInputStream(entry)), start, length));
+			}
+			return p;
+		}
+		finally{
+			jar.close();
+		}
+	}
+
+	private static byte[] readAll(InputStream in)
+		throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			bytes.write(buffer, 0, read);
+		in.close();
+		return bytes.toByteArray();
+	}
+
+}
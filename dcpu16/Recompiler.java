@@ -0,0 +1,797 @@
+package dcpu16;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An execution engine that translates hot basic blocks of DCPU-16 code into
+ * JVM classes and runs those instead of interpreting.
+ *
+ * A block starts at any PC that has been reached often enough and runs until
+ * it writes to PC (SET PC, ADD PC, JSR...) or until it gets too long. An IFx
+ * skips the instruction after it by itself and the block carries on past it
+ * either way, so a conditional jump only leaves the block when it's taken.
+ * If the instruction after an IFx can't be translated (or is another IFx),
+ * the block ends at the IFx and leaves any skip to the interpreter. Code
+ * without a block, and blocks that could run past the cycle execute() is
+ * told to stop at, go to table dispatch instead.
+ *
+ * Each block becomes a hidden class extending CompiledBlock. Blocks are kept
+ * by start address and thrown away as soon as anything writes into the words
+ * they were translated from, including the block itself. The last block
+ * translated at each address is also shared by every Recompiler, so another
+ * DCPU16 running the same code gets a copy of it, whose class the JVM has
+ * likely compiled by then, rather than translating it again.
+ *
+ * Anything unusual goes to the interpreter instead: pending skips, reserved
+ * instructions, [register + next word] operands
+ * that point past the end of memory and memories smaller than 64K words.
+ */
+class Recompiler
+	implements Memory.Listener
+{
+
+	private static final int MAX_INSTRUCTIONS = 32;
+	private static final int MAX_SPAN = MAX_INSTRUCTIONS * 3;
+	private static final int MAX_INVALIDATIONS = 4;
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private static final AtomicReferenceArray<CompiledBlock> shared = new AtomicReferenceArray<CompiledBlock>(0x10000);
+
+	private DCPU16 cpu;
+	private int[] r;
+	private Memory m;
+	private TableInterpreter interpreter;
+	private CompiledBlock[] blocks = new CompiledBlock[0x10000];
+	private byte[] hits = new byte[0x10000]; // -1 means we tried and couldn't translate
+	private byte[] invalidations = new byte[0x10000];
+	private boolean[] covered = new boolean[0x10000];
+	int threshold = 16; // times a PC is reached before it gets translated
+
+	public Recompiler(DCPU16 cpu){
+		this.cpu = cpu;
+		this.r = cpu.registers().values();
+		this.m = cpu.memory();
+		this.interpreter = new TableInterpreter(cpu);
+	}
+
+	/**
+	 * Runs one block, or one instruction through the interpreter if there's no
+	 * block for the current PC or the block might not be done before stop.
+	 */
+	public void execute(long stop){
+		if (cpu.skipInstruction){
+			cpu.step();
+			return;
+		}
+		int pc = r[Registers.PC];
+		CompiledBlock block = blocks[pc];
+		if (block == null){
+			if (hits[pc] < 0 || ++hits[pc] < threshold){
+				interpreter.execute(stop);
+				return;
+			}
+			block = translate(pc);
+			if (block == null){
+				hits[pc] = -1;
+				interpreter.execute(stop);
+				return;
+			}
+			install(block);
+		}
+		if (stop - cpu.cycles < block.cycles){
+			interpreter.execute(stop);
+			return;
+		}
+		if (block.run(cpu, r, m))
+			cpu.step();
+	}
+
+	/**
+	 * Puts a block in place of the interpreter at its start address, whether it
+	 * was translated just now or ahead of time (see Precompiled).
+	 */
+	void install(CompiledBlock block){
+		block.cycles = 0;
+		for (int pc = block.start; pc < block.start + block.length; pc += length(m.read(pc)))
+			block.cycles += length(m.read(pc)) + DecodeCache.cost(m.read(pc)); // and 1 more, for a skip
+		blocks[block.start] = block;
+		for (int i = 0; i < block.length; i++)
+			covered[block.start + i] = true;
+	}
+
+	public void written(int location){
+		if (location > 0xFFFF)
+			return;
+		hits[location] = 0;
+		hits[(location - 1) & 0xFFFF] = 0;
+		hits[(location - 2) & 0xFFFF] = 0;
+		if (! covered[location])
+			return;
+		for (int start = Math.max(0, location - MAX_SPAN + 1); start <= location; start++){
+			CompiledBlock block = blocks[start];
+			if (block != null && start + block.length > location){
+				block.valid = false;
+				blocks[start] = null;
+				if (invalidations[start] < Byte.MAX_VALUE)
+					invalidations[start]++;
+			}
+		}
+	}
+
+	public int blockCount(){
+		int count = 0;
+		for (CompiledBlock block : blocks)
+			if (block != null)
+				count++;
+		return count;
+	}
+
+	/**
+	 * Translates the block starting at start. Returns null if the instruction
+	 * there can't be translated.
+	 */
+	CompiledBlock translate(int start){
+		if (m.size() < 0x10000 || invalidations[start] > MAX_INVALIDATIONS) // code that keeps rewriting itself isn't worth translating
+			return null;
+		CompiledBlock block = shared.get(start);
+		if (block != null && same(block))
+			return copy(block);
+		Translation t = new Translation();
+		int pc = start;
+		boolean ended = false;
+		int count = 0;
+		boolean conditional = false; // the IFx before this instruction skips it itself
+		while (count < MAX_INSTRUCTIONS && ! ended && pc <= 0xFFFF){
+			int word = m.read(pc);
+			int length = length(word);
+			if (pc + length > 0x10000 || ! translatable(word) || hooked(pc))
+				break;
+			int first = length > 1 ? m.read(pc + 1) : 0;
+			int second = length > 2 ? m.read(pc + 2) : 0;
+			t.skipping = isIf(word) && count + 1 < MAX_INSTRUCTIONS ? skippable(pc + length) : 0;
+			ended = t.instruction(pc, word, first, second);
+			pc += length;
+			count++;
+			if (conditional){ // the IFx skips to here, so whatever this did, the block goes on
+				t.skipped();
+				ended = false;
+			}
+			conditional = t.skipping > 0;
+		}
+		if (count == 0)
+			return null;
+		if (! ended)
+			t.exit(pc & 0xFFFF, true);
+		block = define(t.finish(), start, pc - start);
+		block.words = new int[block.length];
+		for (int i = 0; i < block.length; i++)
+			block.words[i] = m.read(start + i);
+		shared.set(start, block);
+		return block;
+	}
+
+	/*
+	 * Whether the block was translated from the same words as are at its
+	 * start now, with none of them hooked since.
+	 */
+	private boolean same(CompiledBlock block){
+		for (int i = 0; i < block.length; i++)
+			if (m.read(block.start + i) != block.words[i] || hooked(block.start + i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Loads a class file made by the Recompiler as a block.
+	 */
+	static CompiledBlock define(byte[] classFile, int start, int length){
+		try{
+			Class<?> c = lookup.defineHiddenClass(classFile, true).lookupClass();
+			CompiledBlock block = (CompiledBlock)lookup.findConstructor(c, MethodType.methodType(void.class)).invoke();
+			block.start = start;
+			block.length = length;
+			block.classFile = classFile;
+			return block;
+		}
+		catch (Throwable e){
+			throw new RuntimeException("Couldn't load block at " + hexer.Hexer.hex(start), e);
+		}
+	}
+
+	/**
+	 * A fresh, valid instance of the same block, for another DCPU16.
+	 */
+	static CompiledBlock copy(CompiledBlock block){
+		try{
+			CompiledBlock copy = (CompiledBlock)lookup.findConstructor(block.getClass(), MethodType.methodType(void.class)).invoke();
+			copy.start = block.start;
+			copy.length = block.length;
+			copy.classFile = block.classFile;
+			copy.words = block.words;
+			return copy;
+		}
+		catch (Throwable e){
+			throw new RuntimeException("Couldn't copy block at " + hexer.Hexer.hex(block.start), e);
+		}
+	}
+
+	static int length(int word){
+		int length = 1;
+		if ((word & 0xF) == 0)
+			return DecodeCache.hasNextWord((word >> 10) & 0x3F) ? 2 : 1;
+		if (DecodeCache.hasNextWord((word >> 4) & 0x3F))
+			length++;
+		if (DecodeCache.hasNextWord((word >> 10) & 0x3F))
+			length++;
+		return length;
+	}
+
+	static boolean isIf(int word){
+		return (word & 0xF) >= 0xC;
+	}
+
+	/**
+	 * The length of the instruction at pc if an IFx in front of it can skip it
+	 * without help from the interpreter, otherwise 0.
+	 */
+	private int skippable(int pc){
+		if (pc > 0xFFFF)
+			return 0;
+		int word = m.read(pc);
+		int length = length(word);
+		if (isIf(word) || ! translatable(word) || pc + length > 0x10000 || hooked(pc))
+			return 0;
+		return length;
+	}
+
+	/*
+	 * Whether Intrinsics may run a routine from pc instead, which only happens
+	 * through step().
+	 */
+	private boolean hooked(int pc){
+		return cpu.decoded.hooked != null && cpu.decoded.hooked[pc];
+	}
+
+	private static boolean translatable(int word){
+		int instruction = word & 0xF;
+		if (instruction == 0)
+			return ((word >> 4) & 0x3F) == 0x01;
+		return true;
+	}
+
+	/*
+	 * Operands as the translator sees them. Registers are read and written in
+	 * place, with PC reads folded to a constant. [register] style operands have
+	 * their location worked out into a local when the instruction starts, just
+	 * like the interpreter does. POP and PUSH turn into a local when resolve()
+	 * moves SP.
+	 */
+	private static final int REGISTER = 0;
+	private static final int LITERAL = 1;
+	private static final int LOCATION = 2;
+	private static final int LOCAL = 3;
+	private static final int POP = 4;
+	private static final int PUSH = 5;
+
+	private static class Operand{
+
+		int kind;
+		int value;
+		boolean known; // a LOCATION whose contents are value, as long as nothing has been written yet
+		int contents;
+
+		Operand(int kind, int value){
+			this.kind = kind;
+			this.value = value;
+		}
+
+	}
+
+	/*
+	 * Locals in the generated run(DCPU16 cpu, int[] r, Memory m). Cycles are
+	 * counted in a local and stored back whenever the block returns.
+	 */
+	private static final int THIS = 0;
+	private static final int CPU = 1;
+	private static final int REGISTERS = 2;
+	private static final int MEMORY = 3;
+	private static final int CYCLES = 4;
+	private static final int A_LOCATION = 6;
+	private static final int B_LOCATION = 7;
+	private static final int VA = 8;
+	private static final int VB = 9;
+	private static final int V = 10;
+	private static final int LOCALS = 11;
+
+	private static final String CPU_CLASS = "dcpu16/DCPU16";
+	private static final String MEMORY_CLASS = "dcpu16/Memory";
+	private static final String BLOCK_CLASS = "dcpu16/CompiledBlock";
+
+	private class Translation{
+
+		private ClassBuilder c = new ClassBuilder("dcpu16/Translated", BLOCK_CLASS);
+		private ClassBuilder.Code code = c.new Code();
+		private int length;
+		private int pcAfter;
+		private boolean wroteMemory;
+		int skipping; // length of the instruction the IFx being emitted should skip by itself, 0 to leave a skip for the interpreter
+		private ClassBuilder.Label skip; // where that IFx goes when it fails
+
+		Translation(){
+			code.load(ClassBuilder.ALOAD, CPU);
+			code.op(ClassBuilder.GETFIELD);
+			code.u2(c.fieldRef(CPU_CLASS, "cycles", "J"));
+			code.load(ClassBuilder.LSTORE, CYCLES);
+		}
+
+		public byte[] finish(){
+			c.addMethod("run", "(L" + CPU_CLASS + ";[IL" + MEMORY_CLASS + ";)Z", code, 8, LOCALS);
+			return c.toBytes();
+		}
+
+		/**
+		 * Emits one instruction. Returns true if the block has to end with it.
+		 */
+		public boolean instruction(int pc, int word, int first, int second){
+			int instruction = word & 0xF;
+			length = length(word);
+			pcAfter = (pc + length) & 0xFFFF;
+			wroteMemory = false;
+			ClassBuilder.Label bail = new ClassBuilder.Label();
+			boolean ends;
+			if (instruction == 0){
+				Operand a = operand((word >> 10) & 0x3F, pc + 1, first, A_LOCATION, bail);
+				jsr(a);
+				cycles(length - 1 + 2);
+				ends = true;
+			}
+			else{
+				int aCode = (word >> 4) & 0x3F;
+				int bCode = (word >> 10) & 0x3F;
+				Operand a = operand(aCode, pc + 1, first, A_LOCATION, bail);
+				Operand b = operand(bCode, pc + (DecodeCache.hasNextWord(aCode) ? 2 : 1), DecodeCache.hasNextWord(aCode) ? second : first, B_LOCATION, bail);
+				basic(instruction, a, b);
+				cycles(length - 1);
+				ends = (instruction >= 0xC && skipping == 0) || (instruction < 0xC && aCode == 0x1C);
+			}
+			if (ends)
+				exit(pcAfter, ! writesPC(word));
+			else if (wroteMemory){
+				ClassBuilder.Label stillValid = new ClassBuilder.Label();
+				code.load(ClassBuilder.ALOAD, THIS);
+				code.op(ClassBuilder.GETFIELD);
+				code.u2(c.fieldRef(BLOCK_CLASS, "valid", "Z"));
+				code.jump(ClassBuilder.IFNE, stillValid);
+				exit(pcAfter, true);
+				code.mark(stillValid);
+			}
+			if (bail.used()){
+				ClassBuilder.Label next = new ClassBuilder.Label();
+				if (! ends)
+					code.jump(ClassBuilder.GOTO, next);
+				code.mark(bail);
+				setPC(pc);
+				storeCycles();
+				code.op(ClassBuilder.ICONST_0 + 1);
+				code.op(ClassBuilder.IRETURN);
+				if (! ends)
+					code.mark(next);
+			}
+			return ends;
+		}
+
+		/**
+		 * Marks where the last IFx goes when it fails, after the instruction it
+		 * skips.
+		 */
+		public void skipped(){
+			code.mark(skip);
+			skip = null;
+		}
+
+		private boolean writesPC(int word){
+			return (word & 0xF) == 0 || (((word >> 4) & 0x3F) == 0x1C && (word & 0xF) < 0xC);
+		}
+
+		public void exit(int pc, boolean storePC){
+			if (storePC)
+				setPC(pc);
+			storeCycles();
+			code.op(ClassBuilder.ICONST_0);
+			code.op(ClassBuilder.IRETURN);
+		}
+
+		private void setPC(int pc){
+			code.load(ClassBuilder.ALOAD, REGISTERS);
+			code.push(Registers.PC);
+			code.push(pc);
+			code.op(ClassBuilder.IASTORE);
+		}
+
+		private void storeCycles(){
+			code.load(ClassBuilder.ALOAD, CPU);
+			code.load(ClassBuilder.LLOAD, CYCLES);
+			code.op(ClassBuilder.PUTFIELD);
+			code.u2(c.fieldRef(CPU_CLASS, "cycles", "J"));
+		}
+
+		private void cycles(int add){
+			if (add == 0)
+				return;
+			code.load(ClassBuilder.LLOAD, CYCLES);
+			code.push(add);
+			code.op(ClassBuilder.I2L);
+			code.op(ClassBuilder.LADD);
+			code.load(ClassBuilder.LSTORE, CYCLES);
+		}
+
+		private void loadRegister(int register){
+			code.load(ClassBuilder.ALOAD, REGISTERS);
+			code.push(register);
+			code.op(ClassBuilder.IALOAD);
+		}
+
+		/**
+		 * Works out everything the interpreter works out while fetching an operand.
+		 */
+		private Operand operand(int resource, int location, int next, int local, ClassBuilder.Label bail){
+			location &= 0xFFFF;
+			if (resource <= 0x07)
+				return new Operand(REGISTER, resource);
+			if (resource <= 0x0F){
+				loadRegister(resource & 0x7);
+				code.load(ClassBuilder.ISTORE, local);
+				return new Operand(LOCAL, local);
+			}
+			if (resource <= 0x17){
+				loadRegister(resource & 0x7);
+				code.push(next);
+				code.op(ClassBuilder.IADD);
+				code.op(ClassBuilder.DUP);
+				code.load(ClassBuilder.ISTORE, local);
+				code.push(0xFFFF);
+				code.jump(ClassBuilder.IF_ICMPGT, bail); // past the end of memory, let the interpreter fail
+				return new Operand(LOCAL, local);
+			}
+			switch (resource){
+				case 0x18:
+					return new Operand(POP, local);
+				case 0x19:
+					loadRegister(Registers.SP);
+					code.load(ClassBuilder.ISTORE, local);
+					return new Operand(LOCAL, local);
+				case 0x1A:
+					return new Operand(PUSH, local);
+				case 0x1B:
+					return new Operand(REGISTER, Registers.SP);
+				case 0x1C:
+					return new Operand(REGISTER, Registers.PC);
+				case 0x1D:
+					return new Operand(REGISTER, Registers.O);
+				case 0x1E:
+					return new Operand(LOCATION, next);
+				case 0x1F:
+					Operand o = new Operand(LOCATION, location);
+					o.known = true;
+					o.contents = next;
+					return o;
+				default:
+					return new Operand(LITERAL, resource & 0x1F);
+			}
+		}
+
+		private Operand resolve(Operand o){
+			if (o.kind == POP){
+				loadRegister(Registers.SP);
+				code.load(ClassBuilder.ISTORE, o.value);
+				code.load(ClassBuilder.ALOAD, REGISTERS);
+				code.push(Registers.SP);
+				code.load(ClassBuilder.ILOAD, o.value);
+				code.op(ClassBuilder.ICONST_0 + 1);
+				code.op(ClassBuilder.IADD);
+				code.push(0xFFFF);
+				code.op(ClassBuilder.IAND);
+				code.op(ClassBuilder.IASTORE);
+				return new Operand(LOCAL, o.value);
+			}
+			if (o.kind == PUSH){
+				push(o.value);
+				return new Operand(LOCAL, o.value);
+			}
+			return o;
+		}
+
+		private void push(int local){
+			loadRegister(Registers.SP);
+			code.op(ClassBuilder.ICONST_0 + 1);
+			code.op(ClassBuilder.ISUB);
+			code.push(0xFFFF);
+			code.op(ClassBuilder.IAND);
+			code.load(ClassBuilder.ISTORE, local);
+			code.load(ClassBuilder.ALOAD, REGISTERS);
+			code.push(Registers.SP);
+			code.load(ClassBuilder.ILOAD, local);
+			code.op(ClassBuilder.IASTORE);
+		}
+
+		private void read(Operand o){
+			switch (o.kind){
+				case REGISTER:
+					if (o.value == Registers.PC)
+						code.push(pcAfter);
+					else
+						loadRegister(o.value);
+					break;
+				case LITERAL:
+					code.push(o.value);
+					break;
+				case LOCATION:
+					if (o.known && ! wroteMemory){
+						code.push(o.contents);
+						break;
+					}
+					code.load(ClassBuilder.ALOAD, MEMORY);
+					code.push(o.value);
+					readMemory();
+					break;
+				case LOCAL:
+					code.load(ClassBuilder.ALOAD, MEMORY);
+					code.load(ClassBuilder.ILOAD, o.value);
+					readMemory();
+					break;
+				default:
+					throw new RuntimeException("Operand read before it was resolved");
+			}
+		}
+
+		private void readMemory(){
+			code.op(ClassBuilder.INVOKEVIRTUAL);
+			code.u2(c.methodRef(MEMORY_CLASS, "read", "(I)I"));
+		}
+
+		private void read(Operand o, int local){
+			read(o);
+			code.load(ClassBuilder.ISTORE, local);
+		}
+
+		private void write(Operand o, int local){
+			switch (o.kind){
+				case REGISTER:
+					writeRegister(o.value, local);
+					break;
+				case LITERAL:
+					break; // do nothing as per spec
+				case LOCATION:
+					code.load(ClassBuilder.ALOAD, MEMORY);
+					code.push(o.value);
+					code.load(ClassBuilder.ILOAD, local);
+					writeMemory();
+					break;
+				case LOCAL:
+					code.load(ClassBuilder.ALOAD, MEMORY);
+					code.load(ClassBuilder.ILOAD, o.value);
+					code.load(ClassBuilder.ILOAD, local);
+					writeMemory();
+					break;
+				default:
+					throw new RuntimeException("Operand written before it was resolved");
+			}
+		}
+
+		private void writeMemory(){
+			code.op(ClassBuilder.INVOKEVIRTUAL);
+			code.u2(c.methodRef(MEMORY_CLASS, "write", "(II)V"));
+			wroteMemory = true;
+		}
+
+		private void writeRegister(int register, int local){
+			code.load(ClassBuilder.ALOAD, REGISTERS);
+			code.push(register);
+			code.load(ClassBuilder.ILOAD, local);
+			code.push(0xFFFF);
+			code.op(ClassBuilder.IAND);
+			code.op(ClassBuilder.IASTORE);
+		}
+
+		/**
+		 * O = (V >> shift) & 0xFFFF
+		 */
+		private void writeOverflow(int shift){
+			code.load(ClassBuilder.ALOAD, REGISTERS);
+			code.push(Registers.O);
+			code.load(ClassBuilder.ILOAD, V);
+			code.push(shift);
+			code.op(ClassBuilder.ISHR);
+			code.push(0xFFFF);
+			code.op(ClassBuilder.IAND);
+			code.op(ClassBuilder.IASTORE);
+		}
+
+		private void jsr(Operand a){
+			push(V);
+			code.load(ClassBuilder.ALOAD, MEMORY);
+			code.load(ClassBuilder.ILOAD, V);
+			code.push(pcAfter);
+			writeMemory();
+			read(resolve(a), V);
+			writeRegister(Registers.PC, V);
+		}
+
+		/**
+		 * Mirrors DCPU16's set(), add() and friends read for read and write for
+		 * write, because POP and PUSH make the order matter.
+		 */
+		private void basic(int instruction, Operand a, Operand b){
+			switch (instruction){
+				case 0x1:
+					read(resolve(b), V);
+					write(resolve(a), V);
+					cycles(1);
+					break;
+				case 0x2:
+				case 0x3:
+					a = resolve(a);
+					read(a, VA);
+					read(resolve(b), VB);
+					if (a.kind == REGISTER) // resolving b may have moved SP
+						read(a, VA);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(instruction == 0x2 ? ClassBuilder.IADD : ClassBuilder.ISUB);
+					code.load(ClassBuilder.ISTORE, V);
+					maskV();
+					write(a, VA);
+					writeOverflow(16);
+					cycles(2);
+					break;
+				case 0x4:
+					a = resolve(a);
+					read(a, VA);
+					read(resolve(b), VB);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(ClassBuilder.IMUL);
+					code.load(ClassBuilder.ISTORE, V);
+					writeOverflow(16);
+					maskV();
+					write(a, VA);
+					cycles(2);
+					break;
+				case 0x5:
+				case 0x6:{
+					read(resolve(b), VB);
+					ClassBuilder.Label nonzero = new ClassBuilder.Label();
+					ClassBuilder.Label done = new ClassBuilder.Label();
+					code.load(ClassBuilder.ILOAD, VB);
+					code.jump(ClassBuilder.IFNE, nonzero);
+					code.push(0);
+					code.load(ClassBuilder.ISTORE, V);
+					write(resolve(a), V);
+					if (instruction == 0x5)
+						writeOverflow(0);
+					code.jump(ClassBuilder.GOTO, done);
+					code.mark(nonzero);
+					a = resolve(a);
+					if (instruction == 0x5){
+						read(a, VA);
+						code.load(ClassBuilder.ILOAD, VA);
+						code.push(16);
+						code.op(ClassBuilder.ISHL);
+						code.load(ClassBuilder.ILOAD, VB);
+						code.op(ClassBuilder.IDIV);
+						code.load(ClassBuilder.ISTORE, V);
+						writeOverflow(0);
+						code.load(ClassBuilder.ILOAD, VA);
+						code.load(ClassBuilder.ILOAD, VB);
+						code.op(ClassBuilder.IDIV);
+						code.load(ClassBuilder.ISTORE, V);
+						maskV();
+						write(a, VA);
+					}
+					else{
+						read(a);
+						code.load(ClassBuilder.ILOAD, VB);
+						code.op(ClassBuilder.IREM);
+						code.load(ClassBuilder.ISTORE, V);
+						write(a, V);
+					}
+					cycles(3);
+					code.mark(done);
+					break;
+				}
+				case 0x7:
+					a = resolve(a);
+					read(a, VA);
+					read(resolve(b), VB);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(ClassBuilder.ISHL);
+					code.load(ClassBuilder.ISTORE, V);
+					writeOverflow(16);
+					maskV();
+					write(a, VA);
+					cycles(2);
+					break;
+				case 0x8:
+					a = resolve(a);
+					read(a, VA);
+					read(resolve(b), VB);
+					if (a.kind == REGISTER) // resolving b may have moved SP
+						read(a, VA);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.push(16);
+					code.op(ClassBuilder.ISHL);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(ClassBuilder.ISHR);
+					code.load(ClassBuilder.ISTORE, V);
+					writeOverflow(0);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(ClassBuilder.ISHR);
+					code.load(ClassBuilder.ISTORE, V);
+					maskV();
+					write(a, VA);
+					cycles(2);
+					break;
+				case 0x9:
+				case 0xA:
+				case 0xB:
+					a = resolve(a);
+					read(a, VA);
+					read(resolve(b), VB);
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					code.op(instruction == 0x9 ? ClassBuilder.IAND : instruction == 0xA ? ClassBuilder.IOR : ClassBuilder.IXOR);
+					code.load(ClassBuilder.ISTORE, V);
+					write(a, V);
+					cycles(1);
+					break;
+				default:{
+					read(resolve(a), VA);
+					read(resolve(b), VB);
+					ClassBuilder.Label taken = new ClassBuilder.Label();
+					code.load(ClassBuilder.ILOAD, VA);
+					code.load(ClassBuilder.ILOAD, VB);
+					switch (instruction){
+						case 0xC:
+							code.jump(ClassBuilder.IF_ICMPEQ, taken); break;
+						case 0xD:
+							code.jump(ClassBuilder.IF_ICMPNE, taken); break;
+						case 0xE:
+							code.jump(ClassBuilder.IF_ICMPGT, taken); break;
+						default:
+							code.op(ClassBuilder.IAND);
+							code.jump(ClassBuilder.IFNE, taken);
+					}
+					if (skipping > 0){
+						cycles(length - 1 + 2 + 1); // the IFx, then 1 for the skipped instruction no matter its length
+						skip = new ClassBuilder.Label();
+						code.jump(ClassBuilder.GOTO, skip);
+					}
+					else{
+						code.load(ClassBuilder.ALOAD, CPU);
+						code.op(ClassBuilder.ICONST_0 + 1);
+						code.op(ClassBuilder.PUTFIELD);
+						code.u2(c.fieldRef(CPU_CLASS, "skipInstruction", "Z"));
+					}
+					code.mark(taken);
+					cycles(2);
+				}
+			}
+		}
+
+		/**
+		 * VA = V & 0xFFFF, ready to be written back
+		 */
+		private void maskV(){
+			code.load(ClassBuilder.ILOAD, V);
+			code.push(0xFFFF);
+			code.op(ClassBuilder.IAND);
+			code.load(ClassBuilder.ISTORE, VA);
+		}
+
+	}
+
+}
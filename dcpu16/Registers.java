@@ -26,6 +26,14 @@ public class Registers{
 		registers[r] = value & 0xFFFF;
 	}
 
+	/**
+	 * The registers themselves, for execution engines in this package that
+	 * can't afford a method call per access. Values are always kept masked.
+	 */
+	int[] values(){
+		return registers;
+	}
+
 	public void inc(int r){
 		inc(r, 1);
 	}
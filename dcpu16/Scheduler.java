@@ -0,0 +1,248 @@
+package dcpu16;
+
+/**
+ * Things for devices to do at a given cycle count of a DCPU16, kept in a
+ * min-heap by cycle. runFor() and runUntil() fire them between instructions,
+ * on the thread that's running the DCPU16, so a timer, a screen refresh or a
+ * key going into the keyboard buffer happens at the same point in the
+ * program every time without a thread of its own. The Recompiler only stops
+ * between blocks, so with it on they can fire a few cycles late.
+ *
+ * Events due at the same cycle fire in the order they were scheduled. An
+ * event can schedule more, itself included, from fire(). Events can be
+ * scheduled from other threads too, but they're only noticed at the next
+ * stop runFor() makes, so they should be given a cycle a little way ahead
+ * (or now, to go as soon as possible). A run() that's parked because the
+ * DCPU16 is idle is woken up for them.
+ */
+public class Scheduler{
+
+	public interface Event{
+
+		public void fire(DCPU16 d);
+
+	}
+
+	private long[] cycles = new long[16];
+	private long[] order = new long[16]; // when it was scheduled, to break ties
+	private Event[] events = new Event[16];
+	private int count = 0;
+	private long scheduled = 0;
+	private volatile long next = Long.MAX_VALUE; // the earliest cycle in the heap
+	private volatile Thread watcher; // to unpark when something is scheduled, see watch()
+
+	public synchronized void schedule(long cycle, Event event){
+		if (count == events.length){
+			cycles = java.util.Arrays.copyOf(cycles, count * 2);
+			order = java.util.Arrays.copyOf(order, count * 2);
+			events = java.util.Arrays.copyOf(events, count * 2);
+		}
+		int i = count++;
+		cycles[i] = cycle;
+		order[i] = scheduled++;
+		events[i] = event;
+		up(i);
+		next = cycles[0];
+		Thread watcher = this.watcher;
+		if (watcher != null)
+			java.util.concurrent.locks.LockSupport.unpark(watcher);
+	}
+
+	/*
+	 * Has schedule() unpark the calling thread until unwatch(), and returns
+	 * whether nothing is scheduled, that is, whether it's safe to park.
+	 */
+	boolean watch(){
+		watcher = Thread.currentThread();
+		return next == Long.MAX_VALUE;
+	}
+
+	void unwatch(){
+		watcher = null;
+	}
+
+	/**
+	 * Takes out the first scheduled firing of the event. Returns false if it
+	 * wasn't scheduled.
+	 */
+	public synchronized boolean cancel(Event event){
+		int found = -1;
+		for (int i = 0; i < count; i++)
+			if (events[i] == event && (found < 0 || before(i, found)))
+				found = i;
+		if (found < 0)
+			return false;
+		remove(found);
+		return true;
+	}
+
+	public synchronized int size(){
+		return count;
+	}
+
+	/**
+	 * The cycle the next event is due at, or Long.MAX_VALUE if there's none.
+	 */
+	public long next(){
+		return next;
+	}
+
+	/**
+	 * Fires every event due by the DCPU16's cycle count, earliest first, and
+	 * returns the cycle of the next one or end, whichever comes first.
+	 */
+	long fire(DCPU16 d, long end){
+		while (next <= d.cycles){
+			Event event;
+			synchronized (this){
+				if (count == 0 || cycles[0] > d.cycles)
+					break;
+				event = events[0];
+				remove(0);
+			}
+			event.fire(d);
+		}
+		return Math.min(next, end);
+	}
+
+	private void remove(int i){
+		count--;
+		if (i < count){
+			move(count, i);
+			if (i > 0 && before(i, (i - 1) / 2))
+				up(i);
+			else
+				down(i);
+		}
+		events[count] = null;
+		next = count > 0 ? cycles[0] : Long.MAX_VALUE;
+	}
+
+	private boolean before(int i, int j){
+		return cycles[i] < cycles[j] || (cycles[i] == cycles[j] && order[i] < order[j]);
+	}
+
+	private void up(int i){
+		while (i > 0){
+			int parent = (i - 1) / 2;
+			if (! before(i, parent))
+				return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void down(int i){
+		while (true){
+			int least = i;
+			int left = i * 2 + 1;
+			if (left < count && before(left, least))
+				least = left;
+			if (left + 1 < count && before(left + 1, least))
+				least = left + 1;
+			if (least == i)
+				return;
+			swap(i, least);
+			i = least;
+		}
+	}
+
+	private void move(int from, int to){
+		cycles[to] = cycles[from];
+		order[to] = order[from];
+		events[to] = events[from];
+	}
+
+	private void swap(int i, int j){
+		long c = cycles[i];
+		cycles[i] = cycles[j];
+		cycles[j] = c;
+		c = order[i];
+		order[i] = order[j];
+		order[j] = c;
+		Event e = events[i];
+		events[i] = events[j];
+		events[j] = e;
+	}
+
+	/*
+	 * Schedules a thousand events at random cycles, cancels some, and checks
+	 * that the rest fire once each, in (cycle, order) order, and on time.
+	 */
+	public static void main(String[] args){
+		final java.util.Random random = new java.util.Random(args.length > 0 ? Long.parseLong(args[0]) : 1);
+		final java.util.ArrayList<long[]> fired = new java.util.ArrayList<long[]>();
+		DCPU16 d = new DCPU16();
+		d.memory().write(0, new int[]{0x8402, 0x81C1}); // ADD A, 1 and SET PC, 0
+		long[][] due = new long[1000][];
+		Event[] all = new Event[due.length];
+		for (int i = 0; i < due.length; i++){
+			final long[] when = due[i] = new long[]{random.nextInt(5000), i, -1}; // cycle, order, fired at
+			all[i] = new Event(){
+				public void fire(DCPU16 d){
+					when[2] = d.cycles();
+					fired.add(when);
+				}
+			};
+			d.scheduler().schedule(when[0], all[i]);
+		}
+		int cancelled = 0;
+		for (int i = 0; i < due.length; i++)
+			if (random.nextInt(5) == 0 && d.scheduler().cancel(all[i]))
+				cancelled++;
+		d.runFor(6000);
+		boolean ok = fired.size() == due.length - cancelled && d.scheduler().size() == 0;
+		for (int i = 0; i < fired.size(); i++){
+			long[] when = fired.get(i);
+			if (when[2] < when[0] || when[2] > when[0] + 2) // an instruction here takes at most 2 cycles
+				ok = false;
+			if (i > 0){
+				long[] before = fired.get(i - 1);
+				if (before[0] > when[0] || (before[0] == when[0] && before[1] > when[1]))
+					ok = false;
+			}
+		}
+		System.out.println(due.length + " events, " + cancelled + " cancelled, " + fired.size() + " fired: " + (ok ? "OK" : "WRONG"));
+		checkWake();
+	}
+
+	/*
+	 * Schedules an event for now while run() is parked on an idle loop, and
+	 * checks that it fires well before the park would have timed out.
+	 */
+	private static void checkWake(){
+		final DCPU16 d = new DCPU16();
+		d.memory().write(0, new int[]{0x81EC, 0x1000, 0x81C1}); // IFE [0x1000], 0 and SET PC, 0
+		d.setIdleDetection(true);
+		Thread runner = new Thread(){
+			public void run(){
+				d.run();
+			}
+		};
+		runner.start();
+		final java.util.concurrent.atomic.AtomicLongArray fired = new java.util.concurrent.atomic.AtomicLongArray(20);
+		long worst = 0;
+		try{
+			for (int i = 0; i < fired.length(); i++){
+				Thread.sleep(20); // long enough for run() to park
+				final int n = i;
+				long start = System.nanoTime();
+				d.scheduler().schedule(d.cycles(), new Event(){
+					public void fire(DCPU16 d){
+						fired.set(n, System.nanoTime());
+					}
+				});
+				while (fired.get(n) == 0 && runner.isAlive())
+					Thread.sleep(0, 100000);
+				worst = Math.max(worst, fired.get(n) - start);
+			}
+			d.stop();
+			runner.join();
+		}
+		catch (InterruptedException e){
+			throw new RuntimeException(e);
+		}
+		System.out.println("events scheduled while idle fired within " + (worst / 1000) + " us: " + (worst < 10000000 ? "OK" : "WRONG"));
+	}
+
+}
@@ -0,0 +1,423 @@
+package dcpu16;
+
+/**
+ * A second interpreter core. Every possible instruction word is looked up
+ * once, ahead of time, in a table of handlers: one for each common pairing of
+ * operation and operand kinds (SET register, literal; ADD register, register;
+ * IFE register, literal...). Each handler does only its own kind of work, with
+ * no operand decoding and no tagging. Everything the table doesn't cover,
+ * and any instruction the DecodeCache hasn't seen yet, goes to DCPU16.step().
+ *
+ * Literals are taken from the DecodeCache's next words, which hold the value
+ * of a short literal as well as of a next word literal. Anything that ends up
+ * in a register is masked, since memory may hold more than 16 bits.
+ *
+ * An IFx that's followed by a jump to a literal (SET PC, ADD PC or SUB PC, the
+ * way compiled code branches) runs both in one go: the jump is taken or
+ * skipped right there, without leaving a skip for the next execute(). Not
+ * if the IFx ends at or past the cycle execute() is told to stop at, so that
+ * an event due there fires between the two, as it would with step().
+ */
+class TableInterpreter{
+
+	private static final byte STEP = 0; // let the general interpreter handle it
+	private static final byte SET_REG_REG = 1;
+	private static final byte SET_REG_LIT = 2;
+	private static final byte SET_REG_MEM_REG = 3; // SET A, [B]
+	private static final byte SET_REG_MEM_NEXT = 4; // SET A, [0x1000]
+	private static final byte SET_REG_MEM_NEXT_REG = 5; // SET A, [0x1000 + B]
+	private static final byte SET_REG_POP = 6;
+	private static final byte SET_MEM_REG_REG = 7; // SET [A], B
+	private static final byte SET_MEM_REG_LIT = 8;
+	private static final byte SET_MEM_NEXT_REG = 9;
+	private static final byte SET_MEM_NEXT_LIT = 10;
+	private static final byte SET_MEM_NEXT_REG_REG = 11; // SET [0x1000 + A], B
+	private static final byte SET_PUSH_REG = 12;
+	private static final byte SET_PUSH_LIT = 13;
+	private static final byte SET_PC_LIT = 14;
+	private static final byte SET_PC_POP = 15;
+	private static final byte ADD_REG_REG = 16;
+	private static final byte ADD_REG_LIT = 17;
+	private static final byte SUB_REG_REG = 18;
+	private static final byte SUB_REG_LIT = 19;
+	private static final byte MUL_REG_REG = 20;
+	private static final byte MUL_REG_LIT = 21;
+	private static final byte SHL_REG_REG = 22;
+	private static final byte SHL_REG_LIT = 23;
+	private static final byte SHR_REG_REG = 24;
+	private static final byte SHR_REG_LIT = 25;
+	private static final byte AND_REG_REG = 26;
+	private static final byte AND_REG_LIT = 27;
+	private static final byte BOR_REG_REG = 28;
+	private static final byte BOR_REG_LIT = 29;
+	private static final byte XOR_REG_REG = 30;
+	private static final byte XOR_REG_LIT = 31;
+	private static final byte IFE_REG_REG = 32;
+	private static final byte IFE_REG_LIT = 33;
+	private static final byte IFN_REG_REG = 34;
+	private static final byte IFN_REG_LIT = 35;
+	private static final byte IFG_REG_REG = 36;
+	private static final byte IFG_REG_LIT = 37;
+	private static final byte IFB_REG_REG = 38;
+	private static final byte IFB_REG_LIT = 39;
+	private static final byte JSR_LIT = 40;
+	private static final byte ADD_PC_LIT = 41;
+	private static final byte SUB_PC_LIT = 42;
+
+	private static final byte[] handlers = new byte[0x10000];
+
+	static{
+		for (int word = 0; word < 0x10000; word++)
+			handlers[word] = handler(word);
+	}
+
+	private static boolean isRegister(int resource){
+		return resource <= 0x07;
+	}
+
+	private static boolean isLiteral(int resource){
+		return resource >= 0x1F;
+	}
+
+	private static byte handler(int word){
+		int instruction = word & 0xF;
+		int a = (word >> 4) & 0x3F;
+		int b = (word >> 10) & 0x3F;
+		if (instruction == 0)
+			return a == 0x01 && isLiteral(b) ? JSR_LIT : STEP;
+		if (instruction == 0x1){
+			if (isRegister(a)){
+				if (isRegister(b))
+					return SET_REG_REG;
+				if (isLiteral(b))
+					return SET_REG_LIT;
+				if (b >= 0x08 && b <= 0x0F)
+					return SET_REG_MEM_REG;
+				if (b == 0x1E)
+					return SET_REG_MEM_NEXT;
+				if (b >= 0x10 && b <= 0x17)
+					return SET_REG_MEM_NEXT_REG;
+				if (b == 0x18)
+					return SET_REG_POP;
+			}
+			else if (a >= 0x08 && a <= 0x0F){
+				if (isRegister(b))
+					return SET_MEM_REG_REG;
+				if (isLiteral(b))
+					return SET_MEM_REG_LIT;
+			}
+			else if (a == 0x1E){
+				if (isRegister(b))
+					return SET_MEM_NEXT_REG;
+				if (isLiteral(b))
+					return SET_MEM_NEXT_LIT;
+			}
+			else if (a >= 0x10 && a <= 0x17){
+				if (isRegister(b))
+					return SET_MEM_NEXT_REG_REG;
+			}
+			else if (a == 0x1A){
+				if (isRegister(b))
+					return SET_PUSH_REG;
+				if (isLiteral(b))
+					return SET_PUSH_LIT;
+			}
+			else if (a == 0x1C){
+				if (isLiteral(b))
+					return SET_PC_LIT;
+				if (b == 0x18)
+					return SET_PC_POP;
+			}
+			return STEP;
+		}
+		if (a == 0x1C && isLiteral(b)){
+			if (instruction == 0x2)
+				return ADD_PC_LIT;
+			if (instruction == 0x3)
+				return SUB_PC_LIT;
+		}
+		if (instruction == 0x5 || instruction == 0x6 || ! isRegister(a))
+			return STEP;
+		if (! isRegister(b) && ! isLiteral(b))
+			return STEP;
+		int pair = isRegister(b) ? 0 : 1;
+		switch (instruction){
+			case 0x2: return (byte)(ADD_REG_REG + pair);
+			case 0x3: return (byte)(SUB_REG_REG + pair);
+			case 0x4: return (byte)(MUL_REG_REG + pair);
+			case 0x7: return (byte)(SHL_REG_REG + pair);
+			case 0x8: return (byte)(SHR_REG_REG + pair);
+			case 0x9: return (byte)(AND_REG_REG + pair);
+			case 0xA: return (byte)(BOR_REG_REG + pair);
+			case 0xB: return (byte)(XOR_REG_REG + pair);
+			case 0xC: return (byte)(IFE_REG_REG + pair);
+			case 0xD: return (byte)(IFN_REG_REG + pair);
+			case 0xE: return (byte)(IFG_REG_REG + pair);
+			default: return (byte)(IFB_REG_REG + pair);
+		}
+	}
+
+	private DCPU16 cpu;
+	private int[] r;
+	private Memory m;
+	private DecodeCache decoded;
+
+	public TableInterpreter(DCPU16 cpu){
+		this.cpu = cpu;
+		this.r = cpu.registers().values();
+		this.m = cpu.memory();
+		this.decoded = cpu.decoded;
+	}
+
+	/**
+	 * Executes one instruction, leaving everything just as step() would have,
+	 * or an IFx and the jump after it if it ends before stop.
+	 */
+	public void execute(long stop){
+		int pc = r[Registers.PC];
+		int entry = decoded.entries[pc];
+		int word = DecodeCache.word(entry);
+		byte handler = handlers[word];
+		if (entry == 0 || handler == STEP || cpu.skipInstruction){
+			cpu.step();
+			return;
+		}
+		cpu.instructionStart = pc;
+		int length = DecodeCache.length(entry);
+		r[Registers.PC] = (pc + length) & 0xFFFF;
+		cpu.cycles += length - 1;
+		int a = (word >> 4) & 0x7;
+		int b = (word >> 10) & 0x7;
+		int v;
+		switch (handler){
+			case SET_REG_REG:
+				r[a] = r[b];
+				cpu.cycles++;
+				break;
+			case SET_REG_LIT:
+				r[a] = decoded.bNext[pc] & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_REG_MEM_REG:
+				r[a] = m.read(r[b]) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_REG_MEM_NEXT:
+				r[a] = m.read(decoded.bNext[pc]) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_REG_MEM_NEXT_REG:
+				r[a] = m.read(r[b] + decoded.bNext[pc]) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_REG_POP:
+				v = r[Registers.SP];
+				r[Registers.SP] = (v + 1) & 0xFFFF;
+				r[a] = m.read(v) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_MEM_REG_REG:
+				m.write(r[a], r[b]);
+				cpu.cycles++;
+				break;
+			case SET_MEM_REG_LIT:
+				m.write(r[a], decoded.bNext[pc]);
+				cpu.cycles++;
+				break;
+			case SET_MEM_NEXT_REG:
+				m.write(decoded.aNext[pc], r[b]);
+				cpu.cycles++;
+				break;
+			case SET_MEM_NEXT_LIT:
+				m.write(decoded.aNext[pc], decoded.bNext[pc]);
+				cpu.cycles++;
+				break;
+			case SET_MEM_NEXT_REG_REG:
+				m.write(r[a] + decoded.aNext[pc], r[b]);
+				cpu.cycles++;
+				break;
+			case SET_PUSH_REG:
+				v = r[b];
+				r[Registers.SP] = (r[Registers.SP] - 1) & 0xFFFF;
+				m.write(r[Registers.SP], v);
+				cpu.cycles++;
+				break;
+			case SET_PUSH_LIT:
+				r[Registers.SP] = (r[Registers.SP] - 1) & 0xFFFF;
+				m.write(r[Registers.SP], decoded.bNext[pc]);
+				cpu.cycles++;
+				break;
+			case SET_PC_LIT:
+				r[Registers.PC] = decoded.bNext[pc] & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case SET_PC_POP:
+				v = r[Registers.SP];
+				r[Registers.SP] = (v + 1) & 0xFFFF;
+				r[Registers.PC] = m.read(v) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case ADD_REG_REG:
+				v = r[a] + r[b];
+				r[a] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case ADD_REG_LIT:
+				v = r[a] + decoded.bNext[pc];
+				r[a] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SUB_REG_REG:
+				v = r[a] - r[b];
+				r[a] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SUB_REG_LIT:
+				v = r[a] - decoded.bNext[pc];
+				r[a] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case MUL_REG_REG:
+				v = r[a] * r[b];
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				r[a] = v & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case MUL_REG_LIT:
+				v = r[a] * decoded.bNext[pc];
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				r[a] = v & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SHL_REG_REG:
+				v = r[a] << r[b];
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				r[a] = v & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SHL_REG_LIT:
+				v = r[a] << decoded.bNext[pc];
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				r[a] = v & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SHR_REG_REG:
+				v = r[b];
+				r[Registers.O] = ((r[a] << 16) >> v) & 0xFFFF;
+				r[a] = (r[a] >> v) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SHR_REG_LIT:
+				v = decoded.bNext[pc];
+				r[Registers.O] = ((r[a] << 16) >> v) & 0xFFFF;
+				r[a] = (r[a] >> v) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case AND_REG_REG:
+				r[a] &= r[b];
+				cpu.cycles++;
+				break;
+			case AND_REG_LIT:
+				r[a] &= decoded.bNext[pc];
+				cpu.cycles++;
+				break;
+			case BOR_REG_REG:
+				r[a] |= r[b];
+				cpu.cycles++;
+				break;
+			case BOR_REG_LIT:
+				r[a] = (r[a] | decoded.bNext[pc]) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case XOR_REG_REG:
+				r[a] ^= r[b];
+				cpu.cycles++;
+				break;
+			case XOR_REG_LIT:
+				r[a] = (r[a] ^ decoded.bNext[pc]) & 0xFFFF;
+				cpu.cycles++;
+				break;
+			case IFE_REG_REG:
+				conditional(r[a] != r[b], stop);
+				break;
+			case IFE_REG_LIT:
+				conditional(r[a] != decoded.bNext[pc], stop);
+				break;
+			case IFN_REG_REG:
+				conditional(r[a] == r[b], stop);
+				break;
+			case IFN_REG_LIT:
+				conditional(r[a] == decoded.bNext[pc], stop);
+				break;
+			case IFG_REG_REG:
+				conditional(r[a] <= r[b], stop);
+				break;
+			case IFG_REG_LIT:
+				conditional(r[a] <= decoded.bNext[pc], stop);
+				break;
+			case IFB_REG_REG:
+				conditional((r[a] & r[b]) == 0, stop);
+				break;
+			case IFB_REG_LIT:
+				conditional((r[a] & decoded.bNext[pc]) == 0, stop);
+				break;
+			case JSR_LIT:
+				v = (r[Registers.SP] - 1) & 0xFFFF;
+				r[Registers.SP] = v;
+				m.write(v, r[Registers.PC]);
+				r[Registers.PC] = decoded.aNext[pc] & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case ADD_PC_LIT:
+				v = r[Registers.PC] + decoded.bNext[pc];
+				r[Registers.PC] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+			case SUB_PC_LIT:
+				v = r[Registers.PC] - decoded.bNext[pc];
+				r[Registers.PC] = v & 0xFFFF;
+				r[Registers.O] = (v >> 16) & 0xFFFF;
+				cpu.cycles += 2;
+				break;
+		}
+	}
+
+	/*
+	 * Finishes off an IFx, with PC already past it. If the next instruction is
+	 * a jump to a literal it gets taken or skipped here and now, at the same
+	 * cost as running it on its own. Otherwise the skip is left for later.
+	 */
+	private void conditional(boolean skip, long stop){
+		cpu.cycles += 2;
+		int pc = r[Registers.PC];
+		int entry = decoded.entries[pc];
+		byte handler = handlers[DecodeCache.word(entry)];
+		if (entry == 0 || (handler != SET_PC_LIT && handler != ADD_PC_LIT && handler != SUB_PC_LIT) || cpu.cycles >= stop){
+			cpu.skipInstruction = skip;
+			return;
+		}
+		int length = DecodeCache.length(entry);
+		int next = pc + length;
+		if (skip){
+			r[Registers.PC] = next & 0xFFFF;
+			cpu.cycles++; // a skip costs 1 whatever the length
+			return;
+		}
+		int v = decoded.bNext[pc];
+		if (handler == SET_PC_LIT){
+			r[Registers.PC] = v & 0xFFFF;
+			cpu.cycles += length;
+			return;
+		}
+		v = handler == ADD_PC_LIT ? (next & 0xFFFF) + v : (next & 0xFFFF) - v;
+		r[Registers.PC] = v & 0xFFFF;
+		r[Registers.O] = (v >> 16) & 0xFFFF;
+		cpu.cycles += length + 1;
+	}
+
+}
@@ -0,0 +1,117 @@
+package dcpu16;
+
+import hexer.*;
+
+/**
+ * The last so many instructions a DCPU16 ran, kept as fixed-size binary
+ * entries in a ring that's allocated once. Nothing is turned into text until
+ * format() is asked for.
+ *
+ * An entry is three longs: the cycle count after the instruction; its PC,
+ * word and a operand; and its b operand, flags, result and O after. Operands
+ * are tagged the way DCPU16 tags them. The result is what the instruction
+ * left in a (where it went, for a JSR).
+ *
+ * Entries are written by whichever thread runs the DCPU16 and not locked, so
+ * the newest few may be torn if it's looked at while running.
+ */
+public class Trace{
+
+	static final int SKIPPED = 1; // an IFx before it came out false
+	static final int SKIP_NEXT = 2; // it was an IFx that came out false
+	static final int FAULTED = 4;
+
+	private static final int LONGS = 3;
+	private static final String[] INSTRUCTIONS = {
+		null, "SET", "ADD", "SUB", "MUL", "DIV", "MOD", "SHL", "SHR", "AND", "BOR", "XOR", "IFE", "IFN", "IFG", "IFB"
+	};
+	private static final String[] REGISTERS = {"A", "B", "C", "X", "Y", "Z", "I", "J", "PC", "SP", "O"};
+
+	private long[] entries;
+	private int capacity;
+	private long recorded = 0;
+
+	Trace(int capacity){
+		this.capacity = capacity;
+		entries = new long[capacity * LONGS];
+	}
+
+	void record(long cycles, int pc, int word, int ao, int bo, int flags, int result, int o){
+		int i = (int)(recorded % capacity) * LONGS;
+		entries[i] = cycles;
+		entries[i + 1] = pc | (long)word << 16 | (long)ao << 32;
+		entries[i + 2] = bo | flags << 24 | (long)result << 32 | (long)o << 48;
+		recorded++;
+	}
+
+	public int capacity(){
+		return capacity;
+	}
+
+	/**
+	 * How many instructions have been recorded, including those that have
+	 * since been written over.
+	 */
+	public long recorded(){
+		return recorded;
+	}
+
+	public void clear(){
+		recorded = 0;
+	}
+
+	/**
+	 * The last count instructions (or as many as are kept), oldest first, one
+	 * to a line.
+	 */
+	public String format(int count){
+		long end = recorded;
+		long start = Math.max(Math.max(0, end - capacity), end - count);
+		StringBuilder b = new StringBuilder();
+		for (long n = start; n < end; n++){
+			int i = (int)(n % capacity) * LONGS;
+			long cycles = entries[i];
+			long first = entries[i + 1];
+			long second = entries[i + 2];
+			int word = (int)(first >> 16) & 0xFFFF;
+			int flags = (int)(second >> 24) & 0xFF;
+			b.append(Hexer.hex((int)first & 0xFFFF) + ": " + Hexer.hex(word) + "  ");
+			if ((flags & SKIPPED) != 0)
+				b.append("skipped");
+			else{
+				int ao = (int)(first >> 32);
+				int bo = (int)second & 0xFFFFFF;
+				if ((word & 0xF) == 0)
+					b.append((((word >> 4) & 0x3F) == 0x01 ? "JSR " : "??? ") + describe(ao));
+				else
+					b.append(INSTRUCTIONS[word & 0xF] + " " + describe(ao) + ", " + describe(bo));
+				b.append(" -> " + Hexer.hex((int)(second >> 32) & 0xFFFF));
+				b.append("  O: " + Hexer.hex((int)(second >> 48) & 0xFFFF));
+			}
+			b.append("  cycles: " + cycles);
+			if ((flags & SKIP_NEXT) != 0)
+				b.append("  skip next");
+			if ((flags & FAULTED) != 0)
+				b.append("  FAULT");
+			b.append("\n");
+		}
+		return b.toString();
+	}
+
+	public String toString(){
+		return format(capacity);
+	}
+
+	private static String describe(int operand){
+		if (operand == DCPU16.POP)
+			return "POP";
+		if (operand == DCPU16.PUSH)
+			return "PUSH";
+		if (operand < DCPU16.REGISTER)
+			return "[" + Hexer.hex(operand) + "]";
+		if (operand < DCPU16.LITERAL)
+			return REGISTERS[operand & 0xF];
+		return (operand & 0x1F) + "";
+	}
+
+}
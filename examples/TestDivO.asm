@@ -0,0 +1,32 @@
+; DIV, MOD and SHR by O, which they also write. Both operands are read first,
+; so the new O never gets divided or shifted by.
+	SET O, 1
+	SET A, 0x30
+	DIV A, O                 ; O = 0, A = 0x30
+	IFN A, 0x30
+		SET PC, crash
+	IFN O, 0
+		SET PC, crash
+
+	SET B, 0x8000
+	MUL B, 6                 ; O = 3
+	SET A, 7
+	MOD A, O                 ; A = 1
+	IFN A, 1
+		SET PC, crash
+
+	SET O, 4
+	SET A, 0x30
+	SHR A, O                 ; O = 0, A = 3
+	IFN A, 3
+		SET PC, crash
+
+; Dividing O by itself
+	SET O, 2
+	DIV O, O                 ; O = 1, nothing left over
+	IFN O, 1
+		SET PC, crash
+
+; Hang forever. X should now be 0x40 if everything went right.
+	SET X, 0x40
+:crash	SET PC, crash